@@ -0,0 +1,94 @@
+package at.allure.upgrade.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Генератор синтетических архивов, устроенных как поставка Allure: bin/, config/allure.yml,
+ * несколько сотен lib/*.jar и plugins/. Содержимое jar наполовину случайное (как сжатые классы),
+ * наполовину текстовое, поэтому архив сжимается примерно как настоящий. Генерация детерминирована.
+ */
+public abstract class ArchiveGenerator {
+    public static final String VERSION = "2.99.0";
+    private static final int LIB_COUNT = 400;
+    private static final int CHUNK = 64 * 1024;
+
+    /**
+     * java ... ArchiveGenerator &lt;путь к архиву&gt; [размер распакованного содержимого в МБ, по умолчанию 50]
+     */
+    public static void main(String[] args) throws IOException {
+        Path path = Paths.get(args.length > 0 ? args[0] : "allure-" + VERSION + ".zip");
+        long sizeMb = args.length > 1 ? Long.parseLong(args[1]) : 50;
+        generate(path, sizeMb * 1024 * 1024);
+        System.out.println("Создан " + path.toAbsolutePath() + " (" + Files.size(path) / 1024 / 1024 + " МБ)");
+    }
+
+    /**
+     * Создаёт архив, суммарный размер распакованного содержимого которого примерно равен totalBytes
+     */
+    public static Path generate(Path path, long totalBytes) throws IOException {
+        if (path.toAbsolutePath().getParent() != null)
+            Files.createDirectories(path.toAbsolutePath().getParent());
+        String root = "allure-" + VERSION + "/";
+        Random random = new Random(totalBytes);
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(path), CHUNK))) {
+            zip.setLevel(Deflater.BEST_SPEED);
+            text(zip, root + "bin/allure", "#!/usr/bin/env sh\nexec java -jar \"$APP_HOME/lib/allure-commandline-" + VERSION + ".jar\" \"$@\"\n");
+            text(zip, root + "bin/allure.bat", "@echo off\r\njava -jar \"%APP_HOME%\\lib\\allure-commandline-" + VERSION + ".jar\" %*\r\n");
+            text(zip, root + "config/allure.yml", "plugins:\n  - junit-xml-plugin\n  - xunit-xml-plugin\n  - behaviors-plugin\n  - packages-plugin\n");
+            text(zip, root + "config/allure-cucumber.yml", "plugins:\n  - behaviors-plugin\n");
+
+            long libSize = Math.max(1, totalBytes / LIB_COUNT);
+            binary(zip, root + "lib/allure-generator-" + VERSION + ".jar", libSize, random);
+            binary(zip, root + "lib/allure-commandline-" + VERSION + ".jar", libSize, random);
+            for (int i = 2; i < LIB_COUNT; i++)
+                binary(zip, root + "lib/dependency-" + i + "-1." + (i % 10) + "." + (i % 7) + ".jar", libSize, random);
+
+            for (String plugin : new String[]{"junit-xml-plugin", "xunit-xml-plugin", "behaviors-plugin", "packages-plugin"}) {
+                text(zip, root + "plugins/" + plugin + "/allure-plugin.yml", "id: " + plugin + "\nname: " + plugin + "\n");
+                binary(zip, root + "plugins/" + plugin + "/" + plugin + "-" + VERSION + ".jar", 64 * 1024, random);
+            }
+        }
+        return path;
+    }
+
+    private static void text(ZipOutputStream zip, String name, String content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+
+    private static void binary(ZipOutputStream zip, String name, long size, Random random) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        write(zip, size, random);
+        zip.closeEntry();
+    }
+
+    private static void write(OutputStream out, long size, Random random) throws IOException {
+        byte[] chunk = new byte[CHUNK];
+        byte[] text = "public final class Generated { int value; String name; }\n".getBytes(StandardCharsets.US_ASCII);
+        long written = 0;
+        boolean randomChunk = true;
+        while (written < size) {
+            int length = (int) Math.min(chunk.length, size - written);
+            if (randomChunk) {
+                random.nextBytes(chunk);
+            } else {
+                for (int i = 0; i < length; i++)
+                    chunk[i] = text[i % text.length];
+            }
+            out.write(chunk, 0, length);
+            written += length;
+            randomChunk = !randomChunk;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package at.allure.upgrade.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+abstract class BenchFiles {
+
+    /**
+     * Удаляет временную папку бенчмарка вместе с содержимым
+     */
+    static void deleteRecursively(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir))
+            return;
+        try (Stream<Path> stream = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) stream.sorted(Comparator.reverseOrder())::iterator)
+                Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package at.allure.upgrade.bench;
+
+import at.allure.upgrade.core.PluginFile;
+import at.allure.upgrade.utils.PluginFileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Получение списка файлов плагина из ресурсов и из папки (без чтения содержимого)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PluginFilesBenchmark {
+
+    private Path dir;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("allure-upgrade-jmh-plugin");
+        for (PluginFile pf : PluginFileUtils.fromResources())
+            Files.write(dir.resolve(pf.inZipPath.getFileName()), pf.getBytes());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchFiles.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public List<PluginFile> fromResources() throws Exception {
+        return PluginFileUtils.fromResources();
+    }
+
+    @Benchmark
+    public List<PluginFile> fromDirectory() throws Exception {
+        return PluginFileUtils.fromDirectory(dir);
+    }
+}
@@ -0,0 +1,80 @@
+package at.allure.upgrade.bench;
+
+import at.allure.upgrade.utils.AllureUtils;
+import at.allure.upgrade.utils.ZipUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Чтение потока в массив и разбор/сравнение версий
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UtilsBenchmark {
+
+    @Param({"4096", "1048576", "16777216"})
+    public int streamSize;
+
+    private byte[] data;
+    private List<String> versions;
+    private List<String> jarNames;
+
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(streamSize);
+        data = new byte[streamSize];
+        random.nextBytes(data);
+        versions = new ArrayList<>();
+        jarNames = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            String version = random.nextInt(3) + "." + random.nextInt(40) + "." + random.nextInt(10);
+            versions.add(version);
+            jarNames.add("lib/allure-dependency-" + i + "-" + version + ".jar");
+        }
+    }
+
+    @Benchmark
+    public byte[] readStreamToByteArray() throws IOException {
+        return ZipUtils.readStreamToByteArray(new ByteArrayInputStream(data));
+    }
+
+    @Benchmark
+    public List<String> compareVersions() {
+        List<String> sorted = new ArrayList<>(versions);
+        sorted.sort(AllureUtils.compareVersions());
+        return sorted;
+    }
+
+    @Benchmark
+    public int versionFrom() {
+        int found = 0;
+        for (String name : jarNames) {
+            Optional<String> version = AllureUtils.versionFrom(name);
+            if (version.isPresent())
+                found++;
+        }
+        return found;
+    }
+}
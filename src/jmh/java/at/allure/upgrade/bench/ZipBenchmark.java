@@ -0,0 +1,108 @@
+package at.allure.upgrade.bench;
+
+import at.allure.upgrade.core.PluginFile;
+import at.allure.upgrade.core.PluginFileSet;
+import at.allure.upgrade.core.Upgrade;
+import at.allure.upgrade.core.Zip;
+import at.allure.upgrade.core.ZipVerifier;
+import at.allure.upgrade.utils.AllureUtils;
+import at.allure.upgrade.utils.ZipUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Чтение, сохранение и проверка архива, определение версии Allure на синтетическом архиве.
+ * Размер задаётся параметром sizeMb, например: gradle jmh -Pjmh.args="ZipBenchmark -p sizeMb=1024 -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZipBenchmark {
+
+    @Param({"50"})
+    public int sizeMb;
+
+    private Path dir;
+    private Path archive;
+    private Path output;
+    private PluginFileSet pluginFiles;
+    private Zip source;
+    private Zip upgraded;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("allure-upgrade-jmh");
+        archive = ArchiveGenerator.generate(dir.resolve("allure-" + ArchiveGenerator.VERSION + ".zip"), sizeMb * 1024L * 1024);
+        output = dir.resolve("output.zip");
+        pluginFiles = PluginFileSet.fromResources();
+        source = new Zip(archive);
+        ZipUtils.save(output, upgrade(new Zip(archive)));
+        upgraded = new Zip(output);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchFiles.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public Zip load() {
+        return new Zip(archive);
+    }
+
+    /**
+     * Полный цикл сохранения: чтение, добавление плагина, правка конфига и запись нового архива
+     */
+    @Benchmark
+    public Path save() throws IOException {
+        ZipUtils.save(output, upgrade(new Zip(archive)));
+        return output;
+    }
+
+    @Benchmark
+    public List<String> verify() throws IOException {
+        return ZipVerifier.verify(source, upgraded, pluginFiles.files, Collections.singleton(Upgrade.ALLURE_CONFIG));
+    }
+
+    /**
+     * Полная распаковка всех записей с проверкой CRC-32: параллельно, см. ZipLoader
+     */
+    @Benchmark
+    public List<String> verifyContent() throws IOException {
+        return ZipVerifier.verifyContent(source);
+    }
+
+    @Benchmark
+    public String parseAllureVersion() {
+        return AllureUtils.parseAllureVersion(source);
+    }
+
+    private Zip upgrade(Zip zip) throws IOException {
+        for (PluginFile pf : pluginFiles.files)
+            zip.add(pf.inZipPath, pf.getBytes());
+        zip.updateContent(Upgrade.ALLURE_CONFIG, content -> Upgrade.addPluginRows(content, pluginFiles.configRows()));
+        return zip;
+    }
+}
@@ -0,0 +1,26 @@
+@echo off
+rem Консольный запуск allure-resultiks-upgrade без AWT/Swing с архивом классов AppCDS.
+rem Архив @JSA@ лежит рядом с jar: его создаёт задача gradle appCds, а если его нет - первый запуск.
+rem Архив привязан к версии JDK и пути jar, после их смены он молча не используется;
+rem удалите его, чтобы он был создан заново. Дополнительные параметры JVM - в JAVA_OPTS.
+setlocal
+set "DIR=%~dp0"
+set "JAR=%DIR%@JAR@"
+set "JSA=%DIR%@JSA@"
+set "JAVA=java"
+if defined JAVA_HOME set "JAVA=%JAVA_HOME%\bin\java"
+set "OPTS=-Xlog:cds=off -Xlog:cds+dynamic=off -Djava.awt.headless=true %JAVA_OPTS%"
+
+if not exist "%JSA%" goto dump
+"%JAVA%" "-XX:SharedArchiveFile=%JSA%" %OPTS% -cp "%JAR%" at.allure.upgrade.cli.Cli %*
+exit /b %ERRORLEVEL%
+
+:dump
+rem архив классов пишется при выходе JVM во временный файл и переносится на место целиком,
+rem после ошибки он не сохраняется - в нём нет классов модификации
+set "TMP_JSA=%JSA%.%RANDOM%"
+"%JAVA%" "-XX:ArchiveClassesAtExit=%TMP_JSA%" %OPTS% -cp "%JAR%" at.allure.upgrade.cli.Cli %*
+set STATUS=%ERRORLEVEL%
+if %STATUS% equ 0 if exist "%TMP_JSA%" move /y "%TMP_JSA%" "%JSA%" >nul 2>&1
+if exist "%TMP_JSA%" del "%TMP_JSA%"
+exit /b %STATUS%
@@ -1,19 +1,15 @@
 package at.allure.upgrade;
 
+import at.allure.upgrade.cli.Cli;
 import at.allure.upgrade.core.ZipProcessorWindow;
 
-import javax.swing.*;
-
 public class Main {
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> {
-            try {
-                UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-
-            new ZipProcessorWindow().setVisible(true);
-        });
+        if (args.length > 0) { // с аргументами - консольный режим без окна, AWT и Swing не загружаются
+            System.setProperty("java.awt.headless", "true");
+            Cli.main(args);
+            return;
+        }
+        ZipProcessorWindow.open();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,129 @@
+package at.allure.upgrade.cli;
+
+import at.allure.upgrade.core.PluginFileSet;
+import at.allure.upgrade.core.Progress;
+import at.allure.upgrade.core.ResultCache;
+import at.allure.upgrade.core.Upgrade;
+import at.allure.upgrade.core.UpgradeMetrics;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Параллельная модификация нескольких архивов на пуле фиксированного размера
+ */
+public class BatchUpgrade {
+    private final PluginFileSet pluginFiles;
+    private final int threads;
+    private final ResultCache cache;
+
+
+    public BatchUpgrade(PluginFileSet pluginFiles, int threads, ResultCache cache) {
+        this.pluginFiles = pluginFiles;
+        this.threads = threads;
+        this.cache = cache;
+    }
+
+    /**
+     * Обрабатывает архивы и возвращает результаты в порядке входного списка
+     */
+    public List<Result> run(List<Path> archives) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, archives.size())));
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Path archive : archives) {
+                futures.add(executor.submit(() -> upgrade(archive)));
+            }
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Обрабатывает один архив в текущем потоке
+     */
+    Result upgrade(Path archive) {
+        long start = System.nanoTime();
+        String name = archive.getFileName().toString();
+        Upgrade upgrade = new Upgrade(archive, pluginFiles, message -> Cli.print(name, message));
+        if (Boolean.getBoolean("Updated.allure.progress"))
+            upgrade.setProgress(progress(name));
+        try {
+            String key = null;
+            // архив, обновляемый на месте, из кэша не подменяется: его обновление и так сводится к замене отличий
+            if (cache != null && !upgrade.isInPlace()) {
+                try (UpgradeMetrics.Stage stage = upgrade.metrics.start("cache")) {
+                    key = cache.key(archive, pluginFiles);
+                    if (cache.restore(key, upgrade.output())) {
+                        stage.written(Files.size(upgrade.output())).entries(1);
+                        stage.done();
+                        Cli.print(name, "Результат взят из кэша: " + upgrade.output());
+                        return new Result(archive, upgrade.output(), "cached", null, System.nanoTime() - start, upgrade.metrics);
+                    }
+                    stage.done();
+                }
+            }
+            Path output = upgrade.run();
+            // архив уже был актуален: результат - сам исходный файл пользователя, в кэш его не связываем
+            if (key != null && !output.toAbsolutePath().normalize().equals(archive.toAbsolutePath().normalize()))
+                cache.store(key, output);
+            return new Result(archive, output, upgrade.getAllureVersion(), null, System.nanoTime() - start, upgrade.metrics);
+        } catch (Exception e) {
+            Cli.printError(name, e.getMessage());
+            return new Result(archive, null, upgrade.getAllureVersion(), e.getMessage(), System.nanoTime() - start, upgrade.metrics);
+        }
+    }
+
+
+    /**
+     * Ход этапов в консоль: в консоли обновления реже, чем в окне, по умолчанию раз в секунду.
+     * Начало этапа без данных не выводится, завершение - всегда.
+     */
+    private static Progress progress(String name) {
+        return new Progress(update -> {
+            if (update.bytes > 0 || update.finished)
+                Cli.print(name, "Ход " + update);
+        }, Long.getLong("Updated.allure.progress.interval", 1000L));
+    }
+
+
+    /**
+     * Итог обработки одного архива
+     */
+    public static class Result {
+        public final Path archive;
+        public final Path output;
+        public final String allureVersion;
+        public final String error;
+        public final long nanos;
+        public final UpgradeMetrics metrics;
+
+        Result(Path archive, Path output, String allureVersion, String error, long nanos, UpgradeMetrics metrics) {
+            this.archive = archive;
+            this.output = output;
+            this.allureVersion = allureVersion;
+            this.error = error;
+            this.nanos = nanos;
+            this.metrics = metrics;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package at.allure.upgrade.cli;
+
+import at.allure.upgrade.core.PluginFileSet;
+import at.allure.upgrade.core.ResultCache;
+import at.allure.upgrade.core.UpgradeMetrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Консольный режим без UI: модификация списка архивов, заданных путями или glob-шаблонами,
+ * наблюдение за папкой (watch) и локальный HTTP-сервис (serve)
+ */
+public abstract class Cli {
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILED = 1;
+    public static final int EXIT_USAGE = 2;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+    private static final String USAGE = String.join("\n",
+            "Использование: java -jar allure-resultiks-upgrade.jar [параметры] <архив|glob>...",
+            "               java -jar allure-resultiks-upgrade.jar cache list|purge [--cache-dir <папка>]",
+            "               java -jar allure-resultiks-upgrade.jar watch <папка> [параметры] [--queue <n>] [--settle <мс>]",
+            "               java -jar allure-resultiks-upgrade.jar serve [параметры] [--host <адрес>] [--port <n>] [--max-size <МБ>]",
+            "  --plugin-dir <папка>  папка или zip-архив плагина, можно указать несколько раз (по умолчанию - ресурсы jar)",
+            "  --threads <n>         число параллельно обрабатываемых архивов (по умолчанию - число ядер)",
+            "  --cache               брать готовые архивы из кэша и складывать туда новые",
+            "  --cache-dir <папка>   папка кэша (по умолчанию ~/.allure-upgrade/cache), включает --cache",
+            "  --recompress          сжать заново все файлы архива, а не только новые и изменённые",
+            "  --verify-content      после сохранения распаковать все файлы созданного архива и сверить их CRC-32",
+            "  --manifest            сверить SHA-256 всех файлов с исходным архивом и плагинами, записать <архив>.sha256",
+            "  --metrics <файл>      записать отчёт о времени, байтах и памяти по этапам в JSON",
+            "  --progress            выводить ход этапов: байты, МБ/с и оставшееся время (раз в секунду)",
+            "  --queue <n>           (watch) сколько архивов может ждать обработки (по умолчанию 16)",
+            "  --settle <мс>         (watch) архив считается записанным, если не менялся столько мс (по умолчанию 2000)",
+            "  --host <адрес>        (serve) адрес сервиса (по умолчанию 127.0.0.1)",
+            "  --port <n>            (serve) порт сервиса, 0 - любой свободный (по умолчанию 8097)",
+            "  --max-size <МБ>       (serve) максимальный размер принимаемого архива (по умолчанию 1024)",
+            "  -h, --help            эта справка",
+            "Коды возврата: 0 - все архивы обработаны, 1 - есть ошибки обработки, 2 - ошибка параметров или плагина");
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    public static int run(String[] args) {
+        if (args.length > 0 && args[0].equals("cache"))
+            return cache(args);
+        boolean watch = args.length > 0 && args[0].equals("watch");
+        boolean serve = args.length > 0 && args[0].equals("serve");
+
+        List<Path> pluginDirs = new ArrayList<>();
+        boolean useCache = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int queue = 16;
+        long settle = 2000;
+        String host = "127.0.0.1";
+        int port = 8097;
+        long maxSize = 1024L * 1024 * 1024;
+        List<String> patterns = new ArrayList<>();
+        try {
+            for (int i = watch || serve ? 1 : 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-h":
+                    case "--help":
+                        System.out.println(USAGE);
+                        return EXIT_OK;
+                    case "--plugin-dir":
+                        pluginDirs.add(Paths.get(value(args, ++i)));
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value(args, ++i));
+                        if (threads < 1)
+                            throw new IllegalArgumentException("--threads должен быть больше 0");
+                        break;
+                    case "--cache":
+                        useCache = true;
+                        break;
+                    case "--cache-dir":
+                        System.setProperty("Updated.allure.cache.dir", value(args, ++i));
+                        useCache = true;
+                        break;
+                    case "--recompress":
+                        System.setProperty("Updated.allure.recompress", "true");
+                        break;
+                    case "--verify-content":
+                        System.setProperty("Updated.allure.verify.content", "true");
+                        break;
+                    case "--manifest":
+                        System.setProperty("Updated.allure.verify.manifest", "true");
+                        break;
+                    case "--queue":
+                        queue = Integer.parseInt(value(args, ++i));
+                        if (queue < 1)
+                            throw new IllegalArgumentException("--queue должен быть больше 0");
+                        break;
+                    case "--settle":
+                        settle = Long.parseLong(value(args, ++i));
+                        if (settle < 0)
+                            throw new IllegalArgumentException("--settle не может быть отрицательным");
+                        break;
+                    case "--host":
+                        host = value(args, ++i);
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(value(args, ++i));
+                        if (port < 0 || port > 65535)
+                            throw new IllegalArgumentException("--port должен быть от 0 до 65535");
+                        break;
+                    case "--max-size":
+                        long megabytes = Long.parseLong(value(args, ++i));
+                        if (megabytes < 1)
+                            throw new IllegalArgumentException("--max-size должен быть больше 0");
+                        try {
+                            maxSize = Math.multiplyExact(megabytes, 1024L * 1024);
+                        } catch (ArithmeticException e) {
+                            throw new IllegalArgumentException("--max-size слишком велик: " + megabytes + " МБ");
+                        }
+                        break;
+                    case "--metrics":
+                        System.setProperty("Updated.allure.metrics", value(args, ++i));
+                        break;
+                    case "--progress":
+                        System.setProperty("Updated.allure.progress", "true");
+                        break;
+                    default:
+                        if (args[i].startsWith("--"))
+                            throw new IllegalArgumentException("Неизвестный параметр " + args[i]);
+                        patterns.add(args[i]);
+                }
+            }
+            if (watch && patterns.size() != 1)
+                throw new IllegalArgumentException("Для watch нужно указать одну папку");
+            if (serve && !patterns.isEmpty())
+                throw new IllegalArgumentException("Для serve архивы передаются запросами, а не параметрами");
+            if (patterns.isEmpty() && !serve)
+                throw new IllegalArgumentException("Не указаны архивы для обработки");
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ошибка: " + e.getMessage());
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        List<Path> archives;
+        PluginFileSet pluginFiles;
+        UpgradeMetrics pluginMetrics = new UpgradeMetrics("plugin");
+        try {
+            if (serve) {
+                archives = new ArrayList<>();
+            } else if (watch) {
+                archives = new ArrayList<>();
+                if (!Files.isDirectory(Paths.get(patterns.get(0))))
+                    throw new IOException("Папка не найдена: " + patterns.get(0));
+            } else {
+                archives = expand(patterns);
+            }
+            print("plugin", "Проверка файлов плагина в " + (pluginDirs.isEmpty() ? "составе jar" : pluginDirs) + "...");
+            try (UpgradeMetrics.Stage stage = pluginMetrics.start("plugin-load")) {
+                pluginFiles = PluginFileSet.load(pluginDirs);
+                // файлы плагина сжимаются один раз на все архивы, пока читаются сами архивы
+                pluginFiles.precompress();
+                stage.read(pluginFiles.totalSize()).entries(pluginFiles.size());
+                stage.done();
+            }
+            print("plugin", "Файлы плагина проверены: " + pluginFiles);
+        } catch (Exception e) {
+            printError("cli", e.getMessage());
+            return EXIT_USAGE;
+        }
+
+        if (serve)
+            return serve(new InetSocketAddress(host, port), pluginFiles,
+                    new BatchUpgrade(pluginFiles, threads, useCache ? ResultCache.fromSystemProperties() : null), threads, maxSize);
+        if (watch)
+            return watch(Paths.get(patterns.get(0)), new BatchUpgrade(pluginFiles, threads, useCache ? ResultCache.fromSystemProperties() : null),
+                    threads, queue, settle);
+
+        List<BatchUpgrade.Result> results;
+        try {
+            results = new BatchUpgrade(pluginFiles, threads, useCache ? ResultCache.fromSystemProperties() : null).run(archives);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            printError("cli", "Обработка прервана");
+            return EXIT_FAILED;
+        }
+        printSummary(results);
+        writeMetrics(pluginMetrics, results);
+        return results.stream().allMatch(BatchUpgrade.Result::isSuccess) ? EXIT_OK : EXIT_FAILED;
+    }
+
+    /**
+     * Наблюдение за папкой до остановки процесса (Ctrl+C); принятые архивы перед выходом дообрабатываются
+     */
+    private static int watch(Path dir, BatchUpgrade batch, int threads, int queue, long settle) {
+        WatchDaemon daemon = new WatchDaemon(dir, batch, threads, queue, settle);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            daemon.stop();
+            try {
+                daemon.awaitTermination();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "watch-shutdown"));
+        try {
+            daemon.run();
+            return EXIT_OK;
+        } catch (IOException e) {
+            printError("watch", e.getMessage());
+            return EXIT_FAILED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return EXIT_FAILED;
+        }
+    }
+
+    /**
+     * HTTP-сервис модификации до остановки процесса (Ctrl+C); начатые запросы перед выходом дообрабатываются
+     */
+    private static int serve(InetSocketAddress address, PluginFileSet pluginFiles, BatchUpgrade batch, int threads, long maxSize) {
+        UpgradeServer server;
+        try {
+            server = new UpgradeServer(address, batch, pluginFiles, threads, maxSize);
+        } catch (IOException e) {
+            printError("serve", "Не удалось запустить сервис на " + address + ": " + e.getMessage());
+            return EXIT_FAILED;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(30), "serve-shutdown"));
+        server.start();
+        try {
+            server.awaitStop();
+            return EXIT_OK;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return EXIT_FAILED;
+        }
+    }
+
+    /**
+     * Просмотр и очистка кэша результатов
+     */
+    private static int cache(String[] args) {
+        String action = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("--cache-dir"))
+                    System.setProperty("Updated.allure.cache.dir", value(args, ++i));
+                else if (action == null && (args[i].equals("list") || args[i].equals("purge")))
+                    action = args[i];
+                else
+                    throw new IllegalArgumentException("Неизвестный параметр " + args[i]);
+            }
+            if (action == null)
+                throw new IllegalArgumentException("Не указано действие с кэшем: list или purge");
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ошибка: " + e.getMessage());
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        ResultCache cache = ResultCache.fromSystemProperties();
+        try {
+            if (action.equals("purge")) {
+                System.out.println("Удалено записей кэша: " + cache.purge() + " (" + cache.dir + ")");
+                return EXIT_OK;
+            }
+            List<ResultCache.Item> items = cache.list();
+            long total = 0;
+            for (ResultCache.Item item : items) {
+                System.out.printf("%s  %12d  %s%n", item.key(), item.size, item.lastUsed);
+                total += item.size;
+            }
+            System.out.printf("Кэш %s: записей %d, %d из %d байт%n", cache.dir, items.size(), total, cache.maxSize);
+            return EXIT_OK;
+        } catch (IOException e) {
+            printError("cache", e.getMessage());
+            return EXIT_FAILED;
+        }
+    }
+
+    /**
+     * Отчёт по этапам всех архивов, если задан -DUpdated.allure.metrics или --metrics
+     */
+    private static void writeMetrics(UpgradeMetrics pluginMetrics, List<BatchUpgrade.Result> results) {
+        Path report = UpgradeMetrics.reportPath();
+        if (report == null)
+            return;
+        List<UpgradeMetrics> runs = new ArrayList<>();
+        runs.add(pluginMetrics);
+        results.forEach(result -> runs.add(result.metrics));
+        try {
+            UpgradeMetrics.writeReport(report, runs);
+            print("cli", "Отчёт по этапам: " + report.toAbsolutePath());
+        } catch (IOException e) {
+            printError("cli", "Не удалось записать отчёт по этапам: " + e.getMessage());
+        }
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Не указано значение параметра " + args[i - 1]);
+        return args[i];
+    }
+
+    /**
+     * Раскрывает glob-шаблоны (*, ?, [..], {..}, **) в список существующих файлов
+     */
+    static List<Path> expand(List<String> patterns) throws IOException {
+        Set<Path> archives = new LinkedHashSet<>();
+        for (String pattern : patterns) {
+            if (!isGlob(pattern)) {
+                Path path = Paths.get(pattern);
+                if (!Files.isRegularFile(path))
+                    throw new IOException("Файл не найден: " + pattern);
+                archives.add(path.toAbsolutePath().normalize());
+                continue;
+            }
+            Path base = Paths.get("");
+            Path glob = Paths.get(pattern);
+            int baseCount = 0;
+            while (baseCount < glob.getNameCount() - 1 && !isGlob(glob.getName(baseCount).toString()))
+                baseCount++;
+            if (baseCount > 0)
+                base = glob.getRoot() == null ? glob.subpath(0, baseCount) : glob.getRoot().resolve(glob.subpath(0, baseCount));
+            else if (glob.getRoot() != null)
+                base = glob.getRoot();
+            Path relative = glob.subpath(baseCount, glob.getNameCount());
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + relative.toString());
+            int depth = pattern.contains("**") ? Integer.MAX_VALUE : relative.getNameCount();
+            Path dir = base.toString().isEmpty() ? Paths.get(".") : base;
+            List<Path> found;
+            try (Stream<Path> stream = Files.walk(dir, depth)) {
+                found = stream.filter(Files::isRegularFile)
+                        .filter(p -> matcher.matches(dir.relativize(p)))
+                        .map(p -> p.toAbsolutePath().normalize())
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+            if (found.isEmpty())
+                throw new IOException("Нет файлов по шаблону " + pattern);
+            archives.addAll(found);
+        }
+        return new ArrayList<>(archives);
+    }
+
+    private static boolean isGlob(String s) {
+        return s.indexOf('*') >= 0 || s.indexOf('?') >= 0 || s.indexOf('[') >= 0 || s.indexOf('{') >= 0;
+    }
+
+    private static void printSummary(List<BatchUpgrade.Result> results) {
+        long failed = results.stream().filter(r -> !r.isSuccess()).count();
+        StringBuilder summary = new StringBuilder("\nИтог: обработано " + results.size() + ", успешно " + (results.size() - failed) + ", с ошибками " + failed + "\n");
+        for (BatchUpgrade.Result result : results) {
+            summary.append(String.format("  %-4s %-45s %-20s %6d ms  %s%n",
+                    result.isSuccess() ? "OK" : "FAIL",
+                    result.archive.getFileName(),
+                    result.allureVersion == null ? "-" : result.allureVersion,
+                    result.nanos / 1_000_000,
+                    result.isSuccess() ? result.output : result.error));
+        }
+        synchronized (System.out) {
+            System.out.print(summary);
+        }
+    }
+
+    static void print(String source, String message) {
+        String line = LocalTime.now().format(TIME_FORMAT) + "   [" + source + "] " + message;
+        synchronized (System.out) {
+            System.out.println(line);
+        }
+    }
+
+    static void printError(String source, String message) {
+        String line = LocalTime.now().format(TIME_FORMAT) + "   [" + source + "] Ошибка: " + message;
+        synchronized (System.out) {
+            System.err.println(line);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package at.allure.upgrade.cli;
+
+import at.allure.upgrade.core.PluginFileSet;
+import at.allure.upgrade.core.TarGzUpgrade;
+import at.allure.upgrade.utils.AllureUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Локальный HTTP-сервис модификации на встроенном HttpServer JDK.
+ * POST /upgrade?name=allure-2.24.0.zip с архивом в теле запроса возвращает модифицированный архив,
+ * GET /health - состояние сервиса. Тело запроса потоком пишется во временный файл (zip читается
+ * с конца, по central directory), ответ потоком отдаётся из файла результата; целиком в память
+ * ни запрос, ни ответ не загружаются. Файлы плагина загружаются один раз при запуске.
+ * Одновременно обрабатывается не больше threads архивов, лишние запросы получают 503.
+ */
+public class UpgradeServer {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final BatchUpgrade batch;
+    private final PluginFileSet pluginFiles;
+    private final long maxSize;
+    private final int threads;
+    private final Semaphore permits;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean stopping;
+
+
+    public UpgradeServer(InetSocketAddress address, BatchUpgrade batch, PluginFileSet pluginFiles, int threads, long maxSize) throws IOException {
+        this.batch = batch;
+        this.pluginFiles = pluginFiles;
+        this.maxSize = maxSize;
+        this.threads = threads;
+        this.permits = new Semaphore(threads);
+        this.server = HttpServer.create(address, 0);
+        // ещё два потока, чтобы /health и отказы 503 отвечали, пока все разрешения заняты
+        this.executor = Executors.newFixedThreadPool(threads + 2);
+        server.setExecutor(executor);
+        server.createContext("/upgrade", this::upgrade);
+        server.createContext("/health", this::health);
+    }
+
+    public void start() {
+        server.start();
+        Cli.print("serve", "Сервис запущен: http://" + address().getHostString() + ":" + address().getPort() + "/upgrade, одновременно архивов " + permits.availablePermits() +
+                ", максимальный размер " + maxSize + " байт");
+    }
+
+    public InetSocketAddress address() {
+        InetSocketAddress address = server.getAddress();
+        return new InetSocketAddress(address.getHostString(), address.getPort());
+    }
+
+    /**
+     * Прекращает приём архивов и ждёт до timeoutSeconds, пока обрабатываемые будут отданы клиентам
+     */
+    public void stop(int timeoutSeconds) {
+        stopping = true;
+        try {
+            // все разрешения свободны - запросов в обработке нет
+            if (!permits.tryAcquire(threads, timeoutSeconds, TimeUnit.SECONDS))
+                Cli.printError("serve", "Не все запросы завершились за " + timeoutSeconds + " с");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.stop(0);
+        executor.shutdown();
+        stopped.countDown();
+    }
+
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    private void health(HttpExchange exchange) throws IOException {
+        try {
+            respond(exchange, 200, "OK, файлов плагина: " + pluginFiles.size() + ", свободно " + permits.availablePermits());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void upgrade(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                respond(exchange, 405, "Нужен POST с архивом в теле запроса");
+                return;
+            }
+            String name = fileName(exchange);
+            Path named = name == null ? null : Paths.get(name).toAbsolutePath();
+            if (named == null || !(name.toLowerCase().endsWith(".zip") || TarGzUpgrade.isTarGz(named))
+                    || AllureUtils.update(named).equals(named)) {
+                respond(exchange, 400, "Параметр name должен быть именем архива с версией, например allure-2.24.0.zip");
+                return;
+            }
+            String declared = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (declared != null && Long.parseLong(declared) > maxSize) {
+                respond(exchange, 413, "Архив больше " + maxSize + " байт");
+                return;
+            }
+            if (stopping) {
+                respond(exchange, 503, "Сервис останавливается");
+                return;
+            }
+            if (!permits.tryAcquire()) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 503, "Сервис занят, повторите запрос позже");
+                return;
+            }
+            try {
+                process(exchange, name);
+            } finally {
+                permits.release();
+            }
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, "Некорректный Content-Length");
+        } catch (IOException | RuntimeException e) {
+            Cli.printError("serve", exchange.getRequestURI() + ": " + e);
+            if (exchange.getResponseCode() == -1) // заголовки ответа ещё не отправлены
+                respond(exchange, 500, "Внутренняя ошибка: " + e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void process(HttpExchange exchange, String name) throws IOException {
+        Path dir = Files.createTempDirectory("allure-upgrade-");
+        try {
+            Path archive = dir.resolve(name);
+            if (!receive(exchange.getRequestBody(), archive)) {
+                respond(exchange, 413, "Архив больше " + maxSize + " байт");
+                return;
+            }
+            BatchUpgrade.Result result = batch.upgrade(archive);
+            if (!result.isSuccess()) {
+                respond(exchange, 422, result.error);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", TarGzUpgrade.isTarGz(archive) ? "application/gzip" : "application/zip");
+            exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + result.output.getFileName() + "\"");
+            if (result.allureVersion != null && !result.allureVersion.equals("cached"))
+                exchange.getResponseHeaders().set("X-Allure-Version", result.allureVersion);
+            exchange.sendResponseHeaders(200, Files.size(result.output));
+            try (OutputStream out = exchange.getResponseBody()) {
+                Files.copy(result.output, out);
+            }
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    /**
+     * Пишет тело запроса в файл, false - тело больше maxSize
+     */
+    private boolean receive(InputStream in, Path target) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        try (OutputStream out = Files.newOutputStream(target)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                total += n;
+                if (total > maxSize)
+                    return false;
+                out.write(buffer, 0, n);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Имя архива из параметра name, без каталогов; null - имени нет или оно не может быть именем файла
+     * ("/", "%2F", недопустимые для файловой системы символы, неверное %-кодирование)
+     */
+    private static String fileName(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null)
+            return null;
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith("name=")) {
+                try {
+                    String value = URLDecoder.decode(parameter.substring(5), StandardCharsets.UTF_8.name());
+                    Path fileName = Paths.get(value.replace('\\', '/')).getFileName();
+                    String name = fileName == null ? "" : fileName.toString();
+                    return name.isEmpty() || name.startsWith(".") ? null : name;
+                } catch (IllegalArgumentException e) { // в том числе InvalidPathException
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void deleteRecursively(Path dir) {
+        try (Stream<Path> stream = Files.walk(dir)) {
+            stream.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException ignored) {
+                    // временный файл удалит система
+                }
+            });
+        } catch (IOException ignored) {
+            // папки уже нет
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package at.allure.upgrade.cli;
+
+import at.allure.upgrade.core.TarGzUpgrade;
+import at.allure.upgrade.utils.AllureUtils;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Режим наблюдения за папкой: архивы allure*.zip (а также .tgz/.tar.gz), уже лежащие в папке при запуске
+ * и появляющиеся в ней, модифицируются, как только их запись завершена. Файл считается записанным, когда его
+ * размер и время изменения не меняются в течение settleMillis. Обработанный архив повторно берётся в работу,
+ * только если его размер или время изменения стали другими. Архивы обрабатываются не более чем в threads потоков, а принятых архивов -
+ * ожидающих окончания записи, в очереди и в обработке - не больше threads + queueSize; когда мест нет, приём
+ * новых архивов ждёт, пока обработка одного из принятых не завершится.
+ */
+public class WatchDaemon {
+    private final Path dir;
+    private final BatchUpgrade batch;
+    private final long settleMillis;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService settler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "watch-settle");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Отметка архива, ожидающего окончания записи, в очереди или в обработке
+     */
+    private static final Snapshot PENDING = new Snapshot(-1, -1);
+
+    /**
+     * Принятые архивы: PENDING - ещё не обработан, иначе размер и время изменения, с которыми он был обработан.
+     * События по архиву с отметкой PENDING или с теми же размером и временем изменения игнорируются.
+     */
+    private final Map<Path, Snapshot> known = new ConcurrentHashMap<>();
+    /**
+     * Места для принятых архивов: занимается при приёме, освобождается по завершении обработки или отказе от архива
+     */
+    private final Semaphore slots;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile WatchService watchService;
+
+
+    public WatchDaemon(Path dir, BatchUpgrade batch, int threads, int queueSize, long settleMillis) {
+        this.dir = dir.toAbsolutePath().normalize();
+        this.batch = batch;
+        this.settleMillis = settleMillis;
+        this.slots = new Semaphore(threads + queueSize);
+        // очередь ограничена местами slots, отказ возможен только после остановки
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+    }
+
+    /**
+     * Архив, который нужно модифицировать: allure*.zip, .tgz или .tar.gz, не временный и ещё не модифицированный
+     */
+    static boolean isCandidate(Path path) {
+        String name = path.getFileName().toString();
+        String lower = name.toLowerCase();
+        return lower.startsWith("allure")
+                && (lower.endsWith(".zip") || TarGzUpgrade.isTarGz(path))
+                && !AllureUtils.isUpdated(path);
+    }
+
+    /**
+     * Наблюдает за папкой до прерывания потока или вызова {@link #stop()}
+     */
+    public void run() throws IOException, InterruptedException {
+        try (WatchService service = dir.getFileSystem().newWatchService()) {
+            watchService = service;
+            dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            Cli.print("watch", "Наблюдение за " + dir + ": потоков " + executor.getCorePoolSize() +
+                    ", очередь " + (slots.availablePermits() - executor.getCorePoolSize()) + ", ожидание записи " + settleMillis + " мс");
+            // архивы, появившиеся до регистрации, событий не дадут
+            rescan();
+            while (true) {
+                WatchKey key;
+                try {
+                    key = service.take();
+                } catch (ClosedWatchServiceException e) {
+                    break;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // часть событий потеряна - пересматриваем папку целиком
+                        rescan();
+                        continue;
+                    }
+                    Path path = dir.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+                        forget(path);
+                    else
+                        offer(path);
+                }
+                if (!key.reset()) {
+                    Cli.printError("watch", "Папка " + dir + " больше недоступна");
+                    break;
+                }
+            }
+        } finally {
+            try {
+                shutdown();
+            } finally {
+                terminated.countDown();
+            }
+        }
+    }
+
+    /**
+     * Ждёт, пока {@link #run()} дообработает принятые архивы и завершится
+     */
+    public void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    /**
+     * Останавливает наблюдение; уже принятые архивы дообрабатываются
+     */
+    public void stop() {
+        WatchService service = watchService;
+        if (service == null)
+            return;
+        try {
+            service.close();
+        } catch (IOException e) {
+            Cli.printError("watch", e.getMessage());
+        }
+    }
+
+    private void rescan() {
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(this::offer);
+        } catch (IOException e) {
+            Cli.printError("watch", "Не удалось просмотреть папку " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Принимает архив, если он не принят уже или изменился после обработки; если все места заняты,
+     * ждёт освобождения места в потоке наблюдения
+     */
+    private void offer(Path path) {
+        if (!isCandidate(path))
+            return;
+        Snapshot current = Snapshot.of(path);
+        Snapshot recorded = known.get(path);
+        if (current == null || recorded == PENDING || current.equals(recorded))
+            return;
+        if (recorded == null ? known.putIfAbsent(path, PENDING) != null : !known.replace(path, recorded, PENDING))
+            return;
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            known.remove(path);
+            return;
+        }
+        Cli.print(path.getFileName().toString(), "Обнаружен архив, ожидание окончания записи...");
+        settle(path, null);
+    }
+
+    /**
+     * Через settleMillis сравнивает размер и время изменения файла с предыдущими; если они не изменились - ставит в очередь
+     */
+    private void settle(Path path, Snapshot previous) {
+        try {
+            settler.schedule(() -> check(path, previous), settleMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            release(path, null); // наблюдение остановлено
+        }
+    }
+
+    private void check(Path path, Snapshot previous) {
+        Snapshot current = Snapshot.of(path);
+        if (current == null) {
+            release(path, null); // файл удалён или переименован, например временный файл загрузки
+            return;
+        }
+        if (!current.equals(previous) || current.size == 0) {
+            settle(path, current);
+            return;
+        }
+        try {
+            executor.execute(() -> process(path, current));
+        } catch (RejectedExecutionException e) {
+            release(path, null);
+        }
+    }
+
+    /**
+     * Модифицирует архив; и при успехе, и при ошибке архив запоминается с размером и временем изменения,
+     * с которыми он был взят в работу, и повторно берётся, только когда они изменятся
+     */
+    private void process(Path path, Snapshot snapshot) {
+        try {
+            BatchUpgrade.Result result = batch.upgrade(path);
+            if (result.isSuccess())
+                Cli.print(path.getFileName().toString(), "Готово за " + result.nanos / 1_000_000 + " мс: " + result.output);
+        } finally {
+            release(path, snapshot);
+        }
+    }
+
+    /**
+     * Освобождает место архива; processed - с какими размером и временем изменения он обработан,
+     * null - архив не обработан и при следующем событии будет принят заново
+     */
+    private void release(Path path, Snapshot processed) {
+        if (processed == null)
+            known.remove(path);
+        else
+            known.put(path, processed);
+        slots.release();
+    }
+
+    /**
+     * Удалённый архив больше не помнится; принятый, но ещё не обработанный, освободит место сам
+     */
+    private void forget(Path path) {
+        Snapshot recorded = known.get(path);
+        if (recorded != null && recorded != PENDING)
+            known.remove(path, recorded);
+    }
+
+    private void shutdown() throws InterruptedException {
+        settler.shutdownNow();
+        executor.shutdown();
+        if (!executor.awaitTermination(1, TimeUnit.HOURS))
+            executor.shutdownNow();
+    }
+
+
+    /**
+     * Размер и время изменения файла
+     */
+    private static class Snapshot {
+        final long size;
+        final long modified;
+
+        Snapshot(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+
+        static Snapshot of(Path path) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return attributes.isRegularFile() ? new Snapshot(attributes.size(), attributes.lastModifiedTime().toMillis()) : null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Snapshot))
+                return false;
+            Snapshot other = (Snapshot) o;
+            return size == other.size && modified == other.modified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, modified);
+        }
+    }
+}
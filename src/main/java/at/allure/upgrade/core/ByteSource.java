@@ -0,0 +1,221 @@
+package at.allure.upgrade.core;
+
+import at.allure.upgrade.utils.ZipUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+
+/**
+ * Содержимое файла, которое читается потоком или передаётся в канал, не собираясь целиком в массив:
+ * файл на диске, ресурс jar, запись архива или данные в памяти. Размер известен заранее,
+ * CRC-32 - из central directory, либо считается потоком при первом запросе.
+ */
+public interface ByteSource {
+
+    /**
+     * Размер в байтах, либо -1, если он неизвестен до чтения
+     */
+    long size() throws IOException;
+
+    /**
+     * Новый поток с начала содержимого, закрывается вызывающим
+     */
+    InputStream open() throws IOException;
+
+    /**
+     * CRC-32 содержимого, как в central directory zip-архива
+     */
+    default long crc() throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = ZipUtils.buffer();
+        try (InputStream in = open()) {
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                crc.update(buffer, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * SHA-256 содержимого, считается потоком без чтения в массив
+     */
+    default byte[] sha256() throws IOException {
+        MessageDigest digest = ZipIndex.sha256();
+        byte[] buffer = ZipUtils.buffer();
+        try (InputStream in = open()) {
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                digest.update(buffer, 0, n);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Передаёт всё содержимое в канал, возвращает число переданных байт
+     */
+    default long transferTo(WritableByteChannel target) throws IOException {
+        try (InputStream in = open()) {
+            return ZipUtils.copy(in, target);
+        }
+    }
+
+    /**
+     * Всё содержимое массивом; при известном размере массив выделяется сразу нужной длины
+     */
+    default byte[] readAll() throws IOException {
+        try (InputStream in = open()) {
+            return ZipUtils.readStreamToByteArray(in, size());
+        }
+    }
+
+    static ByteSource of(Path file) {
+        return new OfFile(file);
+    }
+
+    static ByteSource of(byte[] bytes) {
+        return new OfArray(bytes);
+    }
+
+    static ByteSource of(ContentStore.Content content) {
+        return new OfContent(content);
+    }
+
+
+    /**
+     * Файл на диске: в канал передаётся через FileChannel.transferTo, без копирования в кучу
+     */
+    final class OfFile implements ByteSource {
+        public final Path file;
+
+        OfFile(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return Files.size(file);
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return Files.newInputStream(file);
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return ZipUtils.transfer(channel, 0, channel.size(), target);
+            }
+        }
+
+        @Override
+        public byte[] readAll() throws IOException {
+            return Files.readAllBytes(file);
+        }
+
+        @Override
+        public String toString() {
+            return file.toString();
+        }
+    }
+
+
+    /**
+     * Массив в куче; массив не копируется и не должен изменяться
+     */
+    final class OfArray implements ByteSource {
+        private final byte[] bytes;
+
+        OfArray(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public long size() {
+            return bytes.length;
+        }
+
+        @Override
+        public InputStream open() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            return ZipUtils.write(ByteBuffer.wrap(bytes), target);
+        }
+
+        @Override
+        public byte[] readAll() {
+            return bytes;
+        }
+    }
+
+
+    /**
+     * Содержимое из {@link ContentStore}: в канал передаётся его буфер, в том числе вне кучи,
+     * а содержимое больше 2 ГБ - участок файла выгрузки
+     */
+    final class OfContent implements ByteSource {
+        private final ContentStore.Content content;
+
+        OfContent(ContentStore.Content content) {
+            this.content = content;
+        }
+
+        @Override
+        public long size() {
+            return content.size();
+        }
+
+        @Override
+        public InputStream open() {
+            if (!content.isBuffered())
+                return content.openUnbuffered();
+            ByteBuffer buffer = content.buffer();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return buffer.hasRemaining() ? Byte.toUnsignedInt(buffer.get()) : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (len == 0)
+                        return 0;
+                    if (!buffer.hasRemaining())
+                        return -1;
+                    int n = Math.min(len, buffer.remaining());
+                    buffer.get(b, off, n);
+                    return n;
+                }
+
+                @Override
+                public int available() {
+                    return buffer.remaining();
+                }
+            };
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            if (!content.isBuffered())
+                return content.transferUnbuffered(target);
+            return ZipUtils.write(content.buffer(), target);
+        }
+
+        @Override
+        public byte[] readAll() {
+            return content.bytes();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package at.allure.upgrade.core;
+
+import at.allure.upgrade.utils.ZipUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * SHA-256 и размеры файлов архива или набора плагинов по полному имени записи. Файлы архива хешируются
+ * параллельно в пуле fork-join, каждый читается потоком без распаковки в память целиком.
+ * Записывается в формате sha256sum рядом с созданным архивом: {@code <архив>.sha256}.
+ */
+public final class ContentManifest {
+    public static final String SUFFIX = ".sha256";
+
+    private final Map<String, Item> items = new LinkedHashMap<>();
+
+
+    /**
+     * Файлы архива по его central directory, каталоги пропускаются
+     */
+    public static ContentManifest of(ZipIndex index) throws IOException {
+        return of(index, Progress.NONE.start("manifest", -1));
+    }
+
+    /**
+     * Файлы архива по его central directory; распакованные байты учитываются в progress
+     */
+    public static ContentManifest of(ZipIndex index, Progress.Counter progress) throws IOException {
+        List<ForkJoinTask<Item>> tasks = new ArrayList<>();
+        for (ZipIndex.Entry entry : index.entries) {
+            if (entry.isDirectory())
+                continue;
+            ByteSource source = ZipIndex.source(index.path, entry);
+            tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                try {
+                    return new Item(entry.name(), entry.size, sha256(progress.count(source.open())));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+        ContentManifest manifest = new ContentManifest();
+        try {
+            for (ForkJoinTask<Item> task : tasks) {
+                Item item = task.join();
+                manifest.items.put(item.name, item);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (ForkJoinTask<Item> task : tasks)
+                task.cancel(false);
+        }
+        return manifest;
+    }
+
+    /**
+     * SHA-256 потока, поток закрывается
+     */
+    private static byte[] sha256(InputStream stream) throws IOException {
+        MessageDigest digest = ZipIndex.sha256();
+        byte[] buffer = ZipUtils.buffer();
+        try (InputStream in = stream) {
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                digest.update(buffer, 0, n);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Файлы набора плагинов под именами, которые они получат в архиве с корневой папкой rootDir
+     */
+    public static ContentManifest of(PluginFileSet pluginFiles, String rootDir) throws IOException {
+        ContentManifest manifest = new ContentManifest();
+        for (PluginFile pf : pluginFiles.files)
+            manifest.put(ZipUtils.entryName(rootDir, pf.inZipPath), pf.size(), pf.sha256());
+        return manifest;
+    }
+
+    public void put(String name, long size, byte[] sha256) {
+        items.put(name, new Item(name, size, sha256));
+    }
+
+    public Item get(String name) {
+        return items.get(name);
+    }
+
+    public Map<String, Item> items() {
+        return Collections.unmodifiableMap(items);
+    }
+
+    /**
+     * Записывает манифест атомарно в формате sha256sum: строка "sha256  имя" на каждый файл
+     */
+    public void write(Path path) throws IOException {
+        ZipUtils.writeAtomically(path, out -> {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            for (Item item : items.values())
+                writer.write(item.hex() + "  " + item.name + "\n");
+            writer.flush();
+        });
+    }
+
+    /**
+     * Где лежит манифест архива: рядом с ним, с суффиксом .sha256
+     */
+    public static Path pathFor(Path archive) {
+        return archive.resolveSibling(archive.getFileName() + SUFFIX);
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+
+    /**
+     * Размер и SHA-256 одного файла
+     */
+    public static final class Item {
+        public final String name;
+        public final long size;
+        private final byte[] sha256;
+
+        Item(String name, long size, byte[] sha256) {
+            this.name = name;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+
+        public boolean matches(Item other) {
+            return other != null && size == other.size && Arrays.equals(sha256, other.sha256);
+        }
+
+        public String hex() {
+            return ResultCache.toHex(sha256);
+        }
+
+        @Override
+        public String toString() {
+            return size + " байт, sha256 " + hex();
+        }
+    }
+}
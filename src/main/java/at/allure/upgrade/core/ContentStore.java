@@ -0,0 +1,364 @@
+package at.allure.upgrade.core;
+
+import at.allure.upgrade.utils.ZipUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Хранилище содержимого новых и изменённых файлов с бюджетом памяти. Небольшие файлы остаются в куче,
+ * крупные копируются в direct-буферы вне кучи, а то, что не помещается в бюджет, выгружается
+ * во временный файл и читается через отображение в память. Основной объём данных не попадает в кучу
+ * и не нагружает GC. Файлы больше 2 ГБ не помещаются ни в массив, ни в буфер: они всегда выгружаются
+ * и читаются только потоком из файла выгрузки.
+ */
+public class ContentStore implements Closeable {
+    private final int heapThreshold;
+    private final long budget;
+    private final Path spillDir;
+    /**
+     * Сколько байт бюджета занято содержимым в куче и direct-буферах
+     */
+    private long used;
+    private long spilled;
+    private FileChannel spill;
+    private boolean closed;
+
+
+    /**
+     * @param heapThreshold файлы не больше этого размера хранятся в куче
+     * @param budget        сколько байт можно держать в памяти (в куче и вне её), остальное выгружается на диск
+     * @param spillDir      папка временного файла выгрузки
+     */
+    public ContentStore(int heapThreshold, long budget, Path spillDir) {
+        this.heapThreshold = heapThreshold;
+        this.budget = budget;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * Хранилище с настройками из -DUpdated.allure.memory.budget (в байтах, по умолчанию 64 МБ),
+     * -DUpdated.allure.memory.heap (порог хранения в куче, по умолчанию 64 КБ)
+     * и -DUpdated.allure.memory.spill.dir (по умолчанию java.io.tmpdir)
+     */
+    public static ContentStore fromSystemProperties() {
+        int heapThreshold = Integer.getInteger("Updated.allure.memory.heap", 64 * 1024);
+        long budget = Long.getLong("Updated.allure.memory.budget", 64L * 1024 * 1024);
+        return new ContentStore(heapThreshold, budget, spillDirectory());
+    }
+
+    /**
+     * Папка временных файлов из -DUpdated.allure.memory.spill.dir, по умолчанию java.io.tmpdir
+     */
+    public static Path spillDirectory() {
+        return Paths.get(System.getProperty("Updated.allure.memory.spill.dir", System.getProperty("java.io.tmpdir")));
+    }
+
+    public Content put(byte[] bytes) {
+        return put(Collections.singletonList(bytes), bytes.length);
+    }
+
+    /**
+     * Сохраняет части одного файла подряд, не склеивая их в куче
+     */
+    public Content put(List<byte[]> parts, long size) {
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Файл больше 2 ГБ: " + size + " байт");
+        Tier tier = reserve(size);
+        if (tier == Tier.HEAP) {
+            byte[] array = parts.size() == 1 ? parts.get(0) : concat(parts, size);
+            return new Content(this, Tier.HEAP, array, ByteBuffer.wrap(array));
+        }
+        if (tier == Tier.SPILLED)
+            return spill(parts, size);
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        for (byte[] part : parts)
+            buffer.put(part);
+        buffer.flip();
+        return new Content(this, Tier.DIRECT, null, buffer);
+    }
+
+    /**
+     * Сохраняет содержимое источника без промежуточного массива: в кучу читается массив сразу нужной длины,
+     * вне кучи - передаётся прямо в direct-буфер, при выгрузке - в файл выгрузки (файл с диска копируется
+     * средствами ОС). Файл больше 2 ГБ выгружается без отображения в память, см. {@link Content#isBuffered()}.
+     */
+    public Content put(ByteSource source) throws IOException {
+        long size = source.size();
+        if (size < 0)
+            return put(source.readAll());
+        if (size > Integer.MAX_VALUE)
+            return spillUnbuffered(source, size);
+        Tier tier = reserve(size);
+        try {
+            if (tier == Tier.HEAP) {
+                byte[] array = source.readAll();
+                checkSize(source, array.length, size);
+                return new Content(this, Tier.HEAP, array, ByteBuffer.wrap(array));
+            }
+            if (tier == Tier.SPILLED)
+                return spill(source, size);
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+            checkSize(source, source.transferTo(new BufferChannel(buffer)), size);
+            buffer.flip();
+            return new Content(this, Tier.DIRECT, null, buffer);
+        } catch (IOException | RuntimeException e) {
+            unreserve(tier, size);
+            throw e;
+        }
+    }
+
+    private static void checkSize(ByteSource source, long actual, long expected) throws IOException {
+        if (actual != expected)
+            throw new IOException("Размер " + source + " изменился при чтении: " + actual + " байт вместо " + expected);
+    }
+
+    static byte[] concat(List<byte[]> parts, long size) {
+        byte[] result = new byte[(int) size];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, position, part.length);
+            position += part.length;
+        }
+        return result;
+    }
+
+    /**
+     * Освобождает бюджет, занятый содержимым; сам буфер освободит GC, место в файле выгрузки не переиспользуется
+     */
+    public synchronized void release(Content content) {
+        if (content != null && content.tier != Tier.SPILLED && content.store == this) {
+            used -= content.size();
+            content.store = null;
+        }
+    }
+
+    public synchronized long usedBytes() {
+        return used;
+    }
+
+    public synchronized long spilledBytes() {
+        return spilled;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        used = 0;
+        if (spill != null)
+            spill.close(); // файл удаляется при закрытии
+        spill = null;
+    }
+
+    private synchronized Tier reserve(long size) {
+        checkOpen();
+        if (used + size > budget)
+            return Tier.SPILLED;
+        used += size;
+        return size <= heapThreshold ? Tier.HEAP : Tier.DIRECT;
+    }
+
+    private synchronized void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("Хранилище содержимого закрыто");
+    }
+
+    private synchronized void unreserve(Tier tier, long size) {
+        if (tier != Tier.SPILLED)
+            used -= size;
+    }
+
+    private synchronized Content spill(ByteSource source, long size) throws IOException {
+        try {
+            FileChannel spill = spillChannel();
+            long offset = spilled;
+            spill.position(offset);
+            checkSize(source, source.transferTo(spill), size);
+            spilled = offset + size;
+            MappedByteBuffer mapped = spill.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            return new Content(this, Tier.SPILLED, null, mapped);
+        } catch (IOException e) {
+            throw new IOException("Не удалось выгрузить содержимое на диск в " + spillDir + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Выгружает содержимое, которое не помещается в буфер: оно читается из файла выгрузки по позиции
+     */
+    private synchronized Content spillUnbuffered(ByteSource source, long size) throws IOException {
+        checkOpen();
+        try {
+            FileChannel spill = spillChannel();
+            long offset = spilled;
+            spill.position(offset);
+            checkSize(source, source.transferTo(spill), size);
+            spilled = offset + size;
+            return new Content(this, Tier.SPILLED, null, null, spill, offset, size);
+        } catch (IOException e) {
+            throw new IOException("Не удалось выгрузить содержимое на диск в " + spillDir + ": " + e.getMessage(), e);
+        }
+    }
+
+    private FileChannel spillChannel() throws IOException {
+        if (spill == null) {
+            Path file = Files.createTempFile(spillDir, "allure-upgrade-", ".spill");
+            spill = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        return spill;
+    }
+
+    private synchronized Content spill(List<byte[]> parts, long size) {
+        try {
+            FileChannel spill = spillChannel();
+            long offset = spilled;
+            long position = offset;
+            for (byte[] part : parts) {
+                ByteBuffer source = ByteBuffer.wrap(part);
+                while (source.hasRemaining())
+                    position += spill.write(source, position);
+            }
+            spilled = position;
+            MappedByteBuffer mapped = spill.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            return new Content(this, Tier.SPILLED, null, mapped);
+        } catch (IOException e) {
+            throw new RuntimeException("Не удалось выгрузить содержимое на диск в " + spillDir + ": " + e.getMessage(), e);
+        }
+    }
+
+
+    /**
+     * Канал, дописывающий в direct-буфер; больше места, чем осталось в буфере, он не принимает
+     */
+    private static final class BufferChannel implements WritableByteChannel {
+        private final ByteBuffer buffer;
+
+        BufferChannel(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int length = source.remaining();
+            if (length > buffer.remaining())
+                throw new IOException("Данных больше заявленного размера");
+            buffer.put(source);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+
+    /**
+     * Где хранится содержимое
+     */
+    public enum Tier {
+        HEAP, DIRECT, SPILLED
+    }
+
+
+    /**
+     * Содержимое файла, доступное только для чтения
+     */
+    public static class Content {
+        public final Tier tier;
+        private final byte[] array;
+        /**
+         * Содержимое целиком, null - содержимое больше 2 ГБ и читается только из файла выгрузки
+         */
+        private final ByteBuffer buffer;
+        private final FileChannel file;
+        private final long offset;
+        private final long length;
+        /**
+         * Хранилище, в бюджете которого учтено содержимое, null - не учитывается или уже освобождено
+         */
+        private ContentStore store;
+
+        private Content(ContentStore store, Tier tier, byte[] array, ByteBuffer buffer) {
+            this(store, tier, array, buffer, null, 0, buffer.limit());
+        }
+
+        private Content(ContentStore store, Tier tier, byte[] array, ByteBuffer buffer, FileChannel file, long offset, long length) {
+            this.store = store;
+            this.tier = tier;
+            this.array = array;
+            this.buffer = buffer;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Массив в куче без учёта в бюджете какого-либо хранилища
+         */
+        public static Content of(byte[] bytes) {
+            return new Content(null, Tier.HEAP, bytes, ByteBuffer.wrap(bytes));
+        }
+
+        public long size() {
+            return length;
+        }
+
+        /**
+         * Содержимое доступно буфером и массивом; иначе оно больше 2 ГБ и читается только потоком,
+         * а в архив сжимается потоком при записи, см. {@link ZipWriter#write(String, ByteSource, int, Path)}
+         */
+        public boolean isBuffered() {
+            return buffer != null;
+        }
+
+        /**
+         * Буфер с содержимым от начала до конца, только для чтения; позиция и лимит у каждого вызова свои
+         */
+        public ByteBuffer buffer() {
+            if (buffer == null)
+                throw new IllegalStateException("Содержимое больше 2 ГБ (" + length + " байт) читается только потоком");
+            return buffer.duplicate();
+        }
+
+        /**
+         * Поток содержимого, не помещающегося в буфер: файл выгрузки читается по позиции
+         */
+        InputStream openUnbuffered() {
+            return new ZipIndex.RegionInputStream(file, offset, length);
+        }
+
+        /**
+         * Передаёт содержимое, не помещающееся в буфер, из файла выгрузки в канал средствами ОС
+         */
+        long transferUnbuffered(WritableByteChannel target) throws IOException {
+            return ZipUtils.transfer(file, offset, length, target);
+        }
+
+        /**
+         * Содержимое массивом: из кучи - без копирования, иначе копия
+         */
+        public byte[] bytes() {
+            if (array != null)
+                return array;
+            ByteBuffer buffer = buffer();
+            byte[] copy = new byte[buffer.remaining()];
+            buffer.get(copy);
+            return copy;
+        }
+    }
+}
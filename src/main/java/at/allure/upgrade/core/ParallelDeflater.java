@@ -0,0 +1,155 @@
+package at.allure.upgrade.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Сжатие содержимого записей на fork-join пуле.
+ * Большие файлы делятся на блоки, которые сжимаются независимо (как в pigz): каждый блок
+ * получает словарь из последних 32 КБ предыдущего и завершается SYNC_FLUSH, поэтому
+ * склеенные блоки образуют обычный deflate-поток, читаемый любым unzip.
+ * Исходные данные читаются из буфера (в том числе вне кучи), сжатые блоки складываются в {@link ContentStore}.
+ */
+public class ParallelDeflater {
+    static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private final ForkJoinPool pool;
+    private final int level;
+    /**
+     * Куда складывается сжатое содержимое, null - в кучу без учёта бюджета
+     */
+    private final ContentStore store;
+
+
+    public ParallelDeflater() {
+        this(ForkJoinPool.commonPool(), Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ParallelDeflater(ForkJoinPool pool, int level) {
+        this(pool, level, null);
+    }
+
+    public ParallelDeflater(ForkJoinPool pool, int level, ContentStore store) {
+        this.pool = pool;
+        this.level = level;
+        this.store = store;
+    }
+
+    /**
+     * Запускает сжатие в пуле, не дожидаясь результата
+     */
+    public ForkJoinTask<Compressed> submit(byte[] content) {
+        return submit(ContentStore.Content.of(content));
+    }
+
+    public ForkJoinTask<Compressed> submit(ContentStore.Content content) {
+        return pool.submit(() -> compress(content));
+    }
+
+    public Compressed compress(byte[] content) {
+        return compress(ContentStore.Content.of(content));
+    }
+
+    /**
+     * Сжимает содержимое; если сжатие не даёт выигрыша, запись сохраняется без сжатия (STORED)
+     */
+    public Compressed compress(ContentStore.Content content) {
+        if (!content.isBuffered())
+            throw new IllegalArgumentException("Содержимое больше 2 ГБ сжимается только потоком при записи архива");
+        int length = (int) content.size();
+        int blocks = Math.max(1, (length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        List<byte[]> compressed = new ArrayList<>(blocks);
+        if (blocks == 1) {
+            compressed.add(deflateBlock(content.buffer(), 0, length, true));
+        } else {
+            List<ForkJoinTask<byte[]>> tasks = new ArrayList<>(blocks);
+            for (int i = 0; i < blocks; i++) {
+                int from = i * BLOCK_SIZE;
+                int to = Math.min(length, from + BLOCK_SIZE);
+                boolean last = i == blocks - 1;
+                tasks.add(ForkJoinTask.adapt(() -> deflateBlock(content.buffer(), from, to, last)));
+            }
+            ForkJoinTask.invokeAll(tasks);
+            for (ForkJoinTask<byte[]> task : tasks)
+                compressed.add(task.join());
+        }
+        long compressedSize = 0;
+        for (byte[] block : compressed)
+            compressedSize += block.length;
+
+        CRC32 crc = new CRC32();
+        crc.update(content.buffer());
+        if (compressedSize < length) {
+            ContentStore.Content data = store != null ? store.put(compressed, compressedSize)
+                    : ContentStore.Content.of(blocks == 1 ? compressed.get(0) : ContentStore.concat(compressed, compressedSize));
+            return new Compressed(data, ZipEntry.DEFLATED, crc.getValue(), length);
+        }
+        return new Compressed(content, ZipEntry.STORED, crc.getValue(), length);
+    }
+
+    /**
+     * Сжимает часть буфера [from, to), словарь - до 32 КБ перед from
+     */
+    private byte[] deflateBlock(ByteBuffer content, int from, int to, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (from > 0) {
+                int dictionaryFrom = Math.max(0, from - DICTIONARY_SIZE);
+                ByteBuffer dictionary = content.duplicate();
+                dictionary.limit(from).position(dictionaryFrom);
+                deflater.setDictionary(dictionary);
+            }
+            content.limit(to).position(from);
+            deflater.setInput(content);
+            if (last)
+                deflater.finish();
+            byte[] buffer = new byte[(to - from) + (to - from) / 1000 + 64];
+            int length = 0;
+            while (true) {
+                if (length == buffer.length)
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                int written = deflater.deflate(buffer, length, buffer.length - length,
+                        last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                length += written;
+                // блок готов: поток завершён, либо сброс уместился в буфер целиком
+                if (last ? deflater.finished() : length < buffer.length)
+                    break;
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+
+    /**
+     * Сжатое содержимое записи с CRC и размером исходных данных
+     */
+    public static class Compressed {
+        public final ContentStore.Content data;
+        public final int method;
+        public final long crc;
+        public final long size;
+        /**
+         * CRC-32 распакованных data, посчитанный при первой записи в архив, либо UNCHECKED.
+         * data не меняются, поэтому общее для многих архивов содержимое проверяется один раз.
+         */
+        volatile long writtenCrc = UNCHECKED;
+        static final long UNCHECKED = -2;
+
+        Compressed(ContentStore.Content data, int method, long crc, long size) {
+            this.data = data;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+        }
+    }
+}
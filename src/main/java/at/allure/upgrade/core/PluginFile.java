@@ -3,21 +3,26 @@ package at.allure.upgrade.core;
 
 import at.allure.upgrade.utils.ZipUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.CRC32;
 
 /**
  * Вспомогательный класс для хранения информации о файле плагина
  */
-public abstract class PluginFile {
-    public static final String PLUGIN_ID = "id: resultiks";
+public abstract class PluginFile implements ByteSource {
     public static final String PLUGIN_YML = "allure-plugin.yml";
-    public static final Path PLUGIN_DIR = Paths.get("plugins", "resultiks-plugin");
+    public static final Path PLUGINS_DIR = Paths.get("plugins");
     public static final Path STATIC_DIR = Paths.get("static");
 
     public final Path inZipPath;
@@ -31,7 +36,9 @@ public abstract class PluginFile {
      */
     public abstract List<String> readLines() throws IOException;
 
-    public abstract byte[] getBytes() throws IOException;
+    public byte[] getBytes() throws IOException {
+        return readAll();
+    }
 
     /**
      * Проверяет, является ли файл конфигурацией плагина
@@ -41,14 +48,36 @@ public abstract class PluginFile {
     }
 
     /**
-     * Проверяет наличие ID плагина в конфигурации
+     * ID плагина из строки "id: ..." конфигурации, либо null
      */
-    public boolean hasPluginId() {
+    public String pluginId() {
         try {
-            return readLines().stream().anyMatch(s -> s.trim().equals(PLUGIN_ID));
+            for (String line : readLines()) {
+                if (line.startsWith("id:")) { // только ключ верхнего уровня
+                    String id = line.substring(3).trim().replaceAll("^[\"']|[\"']$", "");
+                    return id.isEmpty() ? null : id;
+                }
+            }
         } catch (Exception e) {
-            return false;
+            // нечитаемая конфигурация - id нет
         }
+        return null;
+    }
+
+    /**
+     * Папка плагина в архиве по его id: как у плагинов в поставке Allure, &lt;id&gt;-plugin
+     */
+    public static Path pluginDir(String id) {
+        return PLUGINS_DIR.resolve(id.endsWith("-plugin") ? id : id + "-plugin");
+    }
+
+    /**
+     * Папка плагина plugins/&lt;папка&gt;, в которой лежит файл, либо null, если файл не в папке плагина
+     */
+    public static Path pluginDirOf(Path inZipPath) {
+        if (inZipPath.getNameCount() < 3 || !inZipPath.getName(0).equals(PLUGINS_DIR))
+            return null;
+        return inZipPath.subpath(0, 2);
     }
 
 
@@ -69,7 +98,26 @@ public abstract class PluginFile {
             return Files.readAllLines(filePath);
         }
 
-        public byte[] getBytes() throws IOException {
+        @Override
+        public long size() throws IOException {
+            return Files.size(filePath);
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return Files.newInputStream(filePath);
+        }
+
+        /**
+         * Файл передаётся в канал средствами ОС, без копирования в кучу
+         */
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            return ByteSource.of(filePath).transferTo(target);
+        }
+
+        @Override
+        public byte[] readAll() throws IOException {
             return Files.readAllBytes(filePath);
         }
 
@@ -97,22 +145,46 @@ public abstract class PluginFile {
         }
 
         public List<String> readLines() throws IOException {
-            try (InputStream is = PluginFile.class.getClassLoader().getResourceAsStream(resourcePath)) {
-                if (is == null)
-                    throw new IOException("Не найден ресурс: " + resourcePath);
-                byte[] bytes = ZipUtils.readStreamToByteArray(is);
-                return Arrays.asList(new String(bytes).split("\\s*\n"));
-            }
+            return Arrays.asList(new String(readAll()).split("\\s*\n"));
+        }
+
+        /**
+         * Размер записи jar из её заголовка, без открытия потока содержимого
+         */
+        @Override
+        public long size() throws IOException {
+            URLConnection connection = connect();
+            if (connection instanceof JarURLConnection)
+                return ((JarURLConnection) connection).getJarEntry().getSize();
+            long size = connection.getContentLengthLong();
+            // ресурс в папке классов: соединение file: открывает файл уже при запросе размера
+            connection.getInputStream().close();
+            return size;
         }
 
-        public byte[] getBytes() throws IOException {
-            try (InputStream is = getClass().getClassLoader().getResourceAsStream(resourcePath)) {
-                if (is == null)
-                    throw new IOException("Не найден ресурс: " + resourcePath);
-                return ZipUtils.readStreamToByteArray(is);
+        @Override
+        public InputStream open() throws IOException {
+            return connect().getInputStream();
+        }
+
+        /**
+         * Массив выделяется сразу по размеру записи jar, содержимое читается в него без промежуточных копий
+         */
+        @Override
+        public byte[] readAll() throws IOException {
+            URLConnection connection = connect();
+            try (InputStream is = connection.getInputStream()) {
+                return ZipUtils.readStreamToByteArray(is, connection.getContentLengthLong());
             }
         }
 
+        private URLConnection connect() throws IOException {
+            URL url = PluginFile.class.getClassLoader().getResource(resourcePath);
+            if (url == null)
+                throw new IOException("Не найден ресурс: " + resourcePath);
+            return url.openConnection();
+        }
+
         @Override
         public String toString() {
             return "PluginFile.FromResources{" +
@@ -122,4 +194,73 @@ public abstract class PluginFile {
         }
     }
 
+
+    /**
+     * Файл, прочитанный один раз: содержимое, размер, CRC-32 и SHA-256 хранятся в памяти.
+     * Неизменяем и может использоваться из нескольких потоков.
+     */
+    public static class Loaded extends PluginFile {
+        private final PluginFile source;
+        private final byte[] bytes;
+        private final long crc;
+        private final byte[] sha256;
+
+
+        public Loaded(PluginFile source) throws IOException {
+            super(source.inZipPath);
+            this.source = source;
+            this.bytes = source.readAll();
+            CRC32 crc32 = new CRC32();
+            crc32.update(bytes);
+            this.crc = crc32.getValue();
+            this.sha256 = ZipIndex.sha256().digest(bytes);
+        }
+
+        public List<String> readLines() {
+            return Arrays.asList(new String(bytes).split("\\s*\n"));
+        }
+
+        /**
+         * Содержимое файла, массив общий для всех вызовов и не должен изменяться
+         */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public long size() {
+            return bytes.length;
+        }
+
+        @Override
+        public InputStream open() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            return ByteSource.of(bytes).transferTo(target);
+        }
+
+        @Override
+        public byte[] readAll() {
+            return bytes;
+        }
+
+        @Override
+        public long crc() {
+            return crc;
+        }
+
+        @Override
+        public byte[] sha256() {
+            return sha256.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "PluginFile.Loaded{" + source + '}';
+        }
+    }
+
 }
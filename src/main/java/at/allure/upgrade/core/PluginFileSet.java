@@ -0,0 +1,280 @@
+package at.allure.upgrade.core;
+
+import at.allure.upgrade.utils.PluginFileUtils;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Набор файлов плагинов, загруженный и проверенный один раз.
+ * Каждый файл читается единожды, его содержимое, размер, CRC-32 и SHA-256 хранятся в памяти,
+ * поэтому один набор можно использовать для модификации многих архивов в нескольких потоках.
+ * Набор может объединять несколько плагинов - все они добавляются в архив за один проход
+ * с одной общей правкой config/allure.yml.
+ */
+public final class PluginFileSet {
+    private static volatile PluginFileSet fromResources;
+
+    public final List<Plugin> plugins;
+    /**
+     * Файлы всех плагинов набора
+     */
+    public final List<PluginFile> files;
+    /**
+     * Откуда взяты плагины: папки и архивы плагинов, пустой список - ресурсы jar
+     */
+    public final List<Path> sources;
+    /**
+     * Файлы плагинов, сжатые один раз на весь набор: при модификации многих архивов
+     * их сжатые байты и CRC-32 записываются в каждый архив как есть
+     */
+    private final Map<Path, ForkJoinTask<ParallelDeflater.Compressed>> compressed = new ConcurrentHashMap<>();
+    private final ParallelDeflater deflater = new ParallelDeflater();
+
+
+    private PluginFileSet(List<Plugin> plugins, List<Path> sources) {
+        List<PluginFile> files = new ArrayList<>();
+        for (Plugin plugin : plugins)
+            files.addAll(plugin.files);
+        this.plugins = Collections.unmodifiableList(plugins);
+        this.files = Collections.unmodifiableList(files);
+        this.sources = Collections.unmodifiableList(sources);
+    }
+
+    /**
+     * Файлы плагина из папки, либо из ресурсов jar, если папка не указана
+     */
+    public static PluginFileSet load(Path pluginDir) {
+        return pluginDir != null ? load(Collections.singletonList(pluginDir)) : fromResources();
+    }
+
+    /**
+     * Плагины из папок и zip-архивов плагинов, объединённые в один набор; без источников - из ресурсов jar
+     */
+    public static PluginFileSet load(List<Path> sources) {
+        if (sources.isEmpty())
+            return fromResources();
+        List<PluginFileSet> sets = new ArrayList<>(sources.size());
+        for (Path source : sources)
+            sets.add(Files.isDirectory(source) ? fromDirectory(source) : fromBundle(source));
+        return merge(sets);
+    }
+
+    public static PluginFileSet fromDirectory(Path pluginDir) {
+        List<PluginFile> files;
+        try {
+            files = PluginFileUtils.fromDirectory(pluginDir);
+        } catch (Exception e) {
+            throw new RuntimeException("Ошибка при получении файлов плагина из " + pluginDir + ": " + e.getMessage(), e);
+        }
+        return of(files, pluginDir);
+    }
+
+    /**
+     * Плагины из zip-архива: каждая папка архива с allure-plugin.yml - отдельный плагин
+     */
+    public static PluginFileSet fromBundle(Path bundle) {
+        if (!Files.isRegularFile(bundle))
+            throw new RuntimeException("Ошибка при получении файлов плагина: не найден " + bundle);
+        try (FileSystem fs = FileSystems.newFileSystem(bundle, (ClassLoader) null)) {
+            List<PluginFileSet> sets = new ArrayList<>();
+            for (Path pluginDir : PluginFileUtils.pluginDirectories(fs.getPath("/")))
+                sets.add(of(PluginFileUtils.fromDirectory(pluginDir), bundle)); // содержимое читается до закрытия архива
+            if (sets.isEmpty())
+                throw new RuntimeException("в архиве нет " + PluginFile.PLUGIN_YML);
+            return merge(sets);
+        } catch (Exception e) {
+            throw new RuntimeException("Ошибка при получении файлов плагина из " + bundle + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Ресурсы jar не меняются во время работы, поэтому читаются один раз на процесс
+     */
+    public static PluginFileSet fromResources() {
+        PluginFileSet result = fromResources;
+        if (result == null) {
+            synchronized (PluginFileSet.class) {
+                result = fromResources;
+                if (result == null) {
+                    List<PluginFile> files;
+                    try {
+                        files = PluginFileUtils.fromResources();
+                    } catch (Exception e) {
+                        throw new RuntimeException("Ошибка при получении файлов плагина: " + e.getMessage(), e);
+                    }
+                    result = fromResources = of(files, null);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Читает файлы и делит их на плагины по папкам plugins/&lt;папка&gt;. У каждого плагина должен быть
+     * allure-plugin.yml с id, id плагинов не должны повторяться.
+     */
+    public static PluginFileSet of(List<PluginFile> pluginFiles, Path source) {
+        Map<Path, List<PluginFile>> byDir = new LinkedHashMap<>();
+        for (PluginFile pf : pluginFiles) {
+            PluginFile.Loaded file;
+            try {
+                file = pf instanceof PluginFile.Loaded ? (PluginFile.Loaded) pf : new PluginFile.Loaded(pf);
+            } catch (IOException e) {
+                throw new RuntimeException("Ошибка при получении файлов плагина: не удалось прочитать " + pf.inZipPath + ", " + e.getMessage(), e);
+            }
+            Path dir = PluginFile.pluginDirOf(file.inZipPath);
+            if (dir == null)
+                throw new RuntimeException("Файл плагина " + file.inZipPath + " должен находиться в папке " + PluginFile.PLUGINS_DIR);
+            byDir.computeIfAbsent(dir, d -> new ArrayList<>()).add(file);
+        }
+
+        List<Plugin> plugins = new ArrayList<>(byDir.size());
+        byDir.forEach((dir, files) -> plugins.add(Plugin.of(dir, files)));
+        return merge(plugins, source == null ? Collections.emptyList() : Collections.singletonList(source));
+    }
+
+    /**
+     * Объединяет наборы в один; плагины с одинаковыми id или папками не допускаются
+     */
+    public static PluginFileSet merge(List<PluginFileSet> sets) {
+        if (sets.size() == 1)
+            return sets.get(0);
+        List<Plugin> plugins = new ArrayList<>();
+        List<Path> sources = new ArrayList<>();
+        for (PluginFileSet set : sets) {
+            plugins.addAll(set.plugins);
+            for (Path source : set.sources)
+                if (!sources.contains(source))
+                    sources.add(source);
+        }
+        return merge(plugins, sources);
+    }
+
+    private static PluginFileSet merge(List<Plugin> plugins, List<Path> sources) {
+        if (plugins.isEmpty())
+            throw new RuntimeException("В папке плагина не найден " + PluginFile.PLUGIN_YML);
+        Map<String, Plugin> ids = new HashMap<>();
+        Map<Path, Plugin> dirs = new HashMap<>();
+        for (Plugin plugin : plugins) {
+            Plugin sameId = ids.put(plugin.id, plugin);
+            if (sameId != null)
+                throw new RuntimeException("Плагин с id '" + plugin.id + "' указан дважды: " + sameId.dir + " и " + plugin.dir);
+            Plugin sameDir = dirs.put(plugin.dir, plugin);
+            if (sameDir != null)
+                throw new RuntimeException("Плагины '" + sameDir.id + "' и '" + plugin.id + "' устанавливаются в одну папку " + plugin.dir);
+        }
+        return new PluginFileSet(new ArrayList<>(plugins), sources);
+    }
+
+    /**
+     * Сжатое содержимое файла набора; сжатие запускается при первом запросе и общее для всех архивов
+     */
+    public ForkJoinTask<ParallelDeflater.Compressed> compressed(PluginFile pf) {
+        return compressed.computeIfAbsent(pf.inZipPath, path -> deflater.submit(((PluginFile.Loaded) pf).getBytes()));
+    }
+
+    /**
+     * Запускает сжатие всех файлов набора, не дожидаясь результата
+     */
+    public PluginFileSet precompress() {
+        for (PluginFile pf : files)
+            compressed(pf);
+        return this;
+    }
+
+    /**
+     * Строки всех плагинов для списка plugins в config/allure.yml
+     */
+    public List<String> configRows() {
+        List<String> rows = new ArrayList<>(plugins.size());
+        for (Plugin plugin : plugins)
+            rows.add(plugin.configRow());
+        return rows;
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    public boolean isEmpty() {
+        return files.isEmpty();
+    }
+
+    /**
+     * Суммарный размер файлов плагинов в байтах
+     */
+    public long totalSize() {
+        long total = 0;
+        for (PluginFile pf : files) {
+            total += ((PluginFile.Loaded) pf).size();
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        List<String> ids = new ArrayList<>(plugins.size());
+        for (Plugin plugin : plugins)
+            ids.add(plugin.id);
+        return String.join(", ", ids);
+    }
+
+
+    /**
+     * Один плагин: id из allure-plugin.yml, папка в архиве и файлы
+     */
+    public static final class Plugin {
+        public final String id;
+        /**
+         * Папка плагина в архиве, plugins/&lt;папка&gt;
+         */
+        public final Path dir;
+        public final List<PluginFile> files;
+        public final PluginFile pluginYml;
+
+        private Plugin(String id, Path dir, List<PluginFile> files, PluginFile pluginYml) {
+            this.id = id;
+            this.dir = dir;
+            this.files = Collections.unmodifiableList(files);
+            this.pluginYml = pluginYml;
+        }
+
+        /**
+         * Проверяет allure-plugin.yml плагина: файл должен быть в папке плагина и содержать id
+         */
+        static Plugin of(Path dir, List<PluginFile> files) {
+            PluginFile pluginYml = null;
+            for (PluginFile pf : files) {
+                if (pf.isPluginYml() && pf.inZipPath.getParent().equals(dir)) {
+                    pluginYml = pf;
+                    break;
+                }
+            }
+            if (pluginYml == null)
+                throw new RuntimeException("В папке плагина " + dir + " не найден " + PluginFile.PLUGIN_YML);
+            String id = pluginYml.pluginId();
+            if (id == null)
+                throw new RuntimeException("В " + dir.resolve(PluginFile.PLUGIN_YML) + " не найден id плагина");
+            return new Plugin(id, dir, files, pluginYml);
+        }
+
+        /**
+         * Строка плагина для списка plugins в config/allure.yml - имя его папки
+         */
+        public String configRow() {
+            return "  - " + dir.getFileName();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package at.allure.upgrade.core;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ход этапов модификации в байтах. Счётчик этапа увеличивают потоки чтения и записи, через которые идут
+ * данные, в том числе из нескольких потоков пула. Слушатель получает обработанные байты, скорость и
+ * оставшееся время не чаще раза в интервал обновления, а также в начале и в конце каждого этапа.
+ */
+public class Progress {
+    /**
+     * Без слушателя: счётчики работают, но никуда не сообщают
+     */
+    public static final Progress NONE = new Progress(update -> {
+    }, Long.MAX_VALUE);
+
+    private final Listener listener;
+    private final long intervalNanos;
+
+
+    /**
+     * Интервал обновления из -DUpdated.allure.progress.interval (мс), по умолчанию 100 мс - 10 обновлений в секунду
+     */
+    public Progress(Listener listener) {
+        this(listener, Long.getLong("Updated.allure.progress.interval", 100L));
+    }
+
+    public Progress(Listener listener, long intervalMillis) {
+        this.listener = listener;
+        this.intervalNanos = intervalMillis >= Long.MAX_VALUE / 1_000_000 ? Long.MAX_VALUE : intervalMillis * 1_000_000;
+    }
+
+    /**
+     * Начинает этап; этап завершается вызовом {@link Counter#close()}
+     *
+     * @param total сколько байт предстоит обработать, -1 - неизвестно
+     */
+    public Counter start(String stage, long total) {
+        Counter counter = new Counter(stage, total);
+        counter.report(false);
+        return counter;
+    }
+
+
+    public interface Listener {
+        /**
+         * Вызывается в потоке, обработавшем данные, поэтому должен быть потокобезопасным и быстрым
+         */
+        void onProgress(Update update);
+    }
+
+
+    /**
+     * Счётчик байт одного этапа
+     */
+    public class Counter implements AutoCloseable {
+        public final String stage;
+        private final long start = System.nanoTime();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong lastReport = new AtomicLong(start);
+        private volatile long total;
+
+        Counter(String stage, long total) {
+            this.stage = stage;
+            this.total = total;
+        }
+
+        public void add(long count) {
+            bytes.addAndGet(count);
+            long now = System.nanoTime();
+            long last = lastReport.get();
+            // из нескольких потоков, одновременно переступивших интервал, сообщает только один
+            if (now - last >= intervalNanos && lastReport.compareAndSet(last, now))
+                report(false);
+        }
+
+        /**
+         * Уточняет объём этапа, когда он становится известен по ходу работы
+         */
+        public void total(long total) {
+            this.total = total;
+        }
+
+        public long bytes() {
+            return bytes.get();
+        }
+
+        /**
+         * Поток, который считает прочитанные байты
+         */
+        public InputStream count(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0)
+                        add(1);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0)
+                        add(n);
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    long skipped = super.skip(n);
+                    if (skipped > 0)
+                        add(skipped);
+                    return skipped;
+                }
+
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+            };
+        }
+
+        /**
+         * Поток, который считает записанные байты
+         */
+        public OutputStream count(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    add(1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    add(len);
+                }
+            };
+        }
+
+        /**
+         * Завершает этап: слушатель получает итог независимо от интервала обновления
+         */
+        @Override
+        public void close() {
+            report(true);
+        }
+
+        private void report(boolean finished) {
+            listener.onProgress(new Update(stage, bytes.get(), total, System.nanoTime() - start, finished));
+        }
+    }
+
+
+    /**
+     * Состояние этапа на момент обновления
+     */
+    public static final class Update {
+        public final String stage;
+        public final long bytes;
+        /**
+         * Объём этапа в байтах, -1 - неизвестен
+         */
+        public final long total;
+        public final long nanos;
+        public final boolean finished;
+
+        Update(String stage, long bytes, long total, long nanos, boolean finished) {
+            this.stage = stage;
+            this.bytes = bytes;
+            this.total = total;
+            this.nanos = nanos;
+            this.finished = finished;
+        }
+
+        /**
+         * Доля выполненного от 0 до 1; пока этап не завершён, не больше 0.99 - объём может быть оценкой
+         */
+        public double fraction() {
+            if (finished)
+                return 1;
+            if (total <= 0)
+                return 0;
+            return Math.min(0.99, (double) bytes / total);
+        }
+
+        public double bytesPerSecond() {
+            return nanos > 0 ? bytes * 1e9 / nanos : 0;
+        }
+
+        /**
+         * Оставшееся время в мс по средней скорости этапа, -1 - неизвестно
+         */
+        public long etaMillis() {
+            if (finished)
+                return 0;
+            double speed = bytesPerSecond();
+            if (total <= 0 || speed <= 0)
+                return -1;
+            return (long) (Math.max(0, total - bytes) * 1000 / speed);
+        }
+
+        /**
+         * Строка вида "save: 12.3 из 60.0 МБ (20%), 45.1 МБ/с, осталось 1 с"
+         */
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder(stage).append(": ").append(megabytes(bytes));
+            if (total > 0)
+                line.append(" из ").append(megabytes(total)).append(" МБ (").append((int) (fraction() * 100)).append("%)");
+            else
+                line.append(" МБ");
+            line.append(", ").append(megabytes((long) bytesPerSecond())).append(" МБ/с");
+            if (finished) {
+                line.append(", ").append(nanos / 1_000_000).append(" мс");
+            } else {
+                long eta = etaMillis();
+                if (eta >= 0)
+                    line.append(", осталось ").append((eta + 999) / 1000).append(" с");
+            }
+            return line.toString();
+        }
+
+        private static String megabytes(long bytes) {
+            return String.format(Locale.ROOT, "%.1f", bytes / (1024.0 * 1024));
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package at.allure.upgrade.core;
+
+import at.allure.upgrade.utils.ZipUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Локальный кэш готовых архивов. Ключ - SHA-256 от central directory исходного архива (для tar.gz - от всего файла),
+ * содержимого файлов плагина и правки config/allure.yml, поэтому одинаковые запросы
+ * не пересобирают архив, а получают его копией или жёсткой ссылкой.
+ * Размер кэша ограничен, при переполнении удаляются давно не использованные записи (LRU
+ * по времени последнего обращения). Время обращения хранится во времени изменения пустого файла
+ * {@code <ключ>.used} рядом с записью: сама запись - жёсткая ссылка на выданные архивы, и её время менять нельзя.
+ * С --manifest вместе с архивом хранится его манифест {@code <ключ>.sha256} и восстанавливается рядом с ним.
+ */
+public class ResultCache {
+    private static final String VERSION = "allure-upgrade-cache-v1";
+    private static final String ZIP_SUFFIX = ".zip";
+    private static final String TAR_GZ_SUFFIX = ".tar.gz";
+    private static final String USED_SUFFIX = ".used";
+    private static final String MANIFEST_SUFFIX = ".sha256";
+
+    public final Path dir;
+    public final long maxSize;
+
+
+    public ResultCache(Path dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Кэш с настройками из -DUpdated.allure.cache.dir и -DUpdated.allure.cache.max.size (в байтах)
+     */
+    public static ResultCache fromSystemProperties() {
+        Path dir = Paths.get(System.getProperty("Updated.allure.cache.dir",
+                Paths.get(System.getProperty("user.home"), ".allure-upgrade", "cache").toString()));
+        long maxSize = Long.getLong("Updated.allure.cache.max.size", 2L * 1024 * 1024 * 1024);
+        return new ResultCache(dir, maxSize);
+    }
+
+    /**
+     * Ключ результата модификации архива заданными файлами плагина
+     */
+    public String key(Path archive, PluginFileSet pluginFiles) throws IOException {
+        MessageDigest digest = ZipIndex.sha256();
+        digest.update(VERSION.getBytes(StandardCharsets.UTF_8));
+        if (TarGzUpgrade.isTarGz(archive)) {
+            // у tar.gz нет каталога записей, хэшируется весь файл
+            try (InputStream in = Files.newInputStream(archive)) {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    digest.update(buffer, 0, n);
+            }
+        } else {
+            // в кучу: отображение держало бы исходный файл открытым до сборки мусора,
+            // а в Windows отображённый файл нельзя заменить на месте
+            digest.update(ZipIndex.read(archive, true).centralDirectoryDigest());
+        }
+        List<PluginFile> sorted = new ArrayList<>(pluginFiles.files);
+        sorted.sort(Comparator.comparing(pf -> pf.inZipPath.toString()));
+        for (PluginFile pf : sorted) {
+            digest.update(pf.inZipPath.toString().replace("\\", "/").getBytes(StandardCharsets.UTF_8));
+            digest.update(pf.sha256());
+        }
+        digest.update((Upgrade.ALLURE_CONFIG + "\n" + String.join("\n", pluginFiles.configRows())).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) (Boolean.getBoolean("Updated.allure.recompress") ? 1 : 0));
+        // результат без манифеста или без полной проверки содержимого не выдаётся запросу, которому они нужны
+        digest.update((byte) (Upgrade.isManifestEnabled() ? 1 : 0));
+        digest.update((byte) (Boolean.getBoolean("Updated.allure.verify.content") ? 1 : 0));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Восстанавливает результат из кэша в target, с --manifest - и его манифест рядом. Возвращает false,
+     * если результата в кэше нет, в том числе если запись удалена параллельно при освобождении места.
+     */
+    public boolean restore(String key, Path target) throws IOException {
+        Path cached = dir.resolve(key + suffix(target));
+        Path manifest = dir.resolve(key + MANIFEST_SUFFIX);
+        if (!Files.isRegularFile(cached) || Upgrade.isManifestEnabled() && !Files.isRegularFile(manifest))
+            return false;
+        try {
+            publish(cached, target);
+            if (Upgrade.isManifestEnabled())
+                publish(manifest, ContentManifest.pathFor(target));
+        } catch (NoSuchFileException e) {
+            if (Files.exists(cached))
+                throw e;
+            return false;
+        }
+        touch(dir.resolve(key + USED_SUFFIX));
+        return true;
+    }
+
+    /**
+     * Кладёт готовый архив в кэш, с --manifest - вместе с его манифестом, и освобождает место, если кэш переполнен
+     */
+    public void store(String key, Path result) throws IOException {
+        Files.createDirectories(dir);
+        if (Upgrade.isManifestEnabled())
+            publish(ContentManifest.pathFor(result), dir.resolve(key + MANIFEST_SUFFIX));
+        publish(result, dir.resolve(key + suffix(result)));
+        touch(dir.resolve(key + USED_SUFFIX));
+        evict();
+    }
+
+    /**
+     * Удаляет давно не использованные записи, пока размер кэша больше maxSize
+     */
+    public synchronized void evict() throws IOException {
+        List<Item> items = list();
+        long total = items.stream().mapToLong(item -> item.size).sum();
+        for (Item item : items) {
+            if (total <= maxSize)
+                break;
+            delete(item);
+            total -= item.size;
+        }
+    }
+
+    /**
+     * Записи кэша, от давно использованных к недавним
+     */
+    public List<Item> list() throws IOException {
+        if (!Files.isDirectory(dir))
+            return new ArrayList<>();
+        try (Stream<Path> stream = Files.list(dir)) {
+            List<Item> items = new ArrayList<>();
+            for (Path path : stream.filter(p -> suffixOf(p) != null).collect(Collectors.toList())) {
+                try {
+                    Path used = dir.resolve(Item.key(path) + USED_SUFFIX);
+                    FileTime lastUsed = Files.exists(used) ? Files.getLastModifiedTime(used) : Files.getLastModifiedTime(path);
+                    Path manifest = dir.resolve(Item.key(path) + MANIFEST_SUFFIX);
+                    long size = Files.size(path) + (Files.exists(manifest) ? Files.size(manifest) : 0);
+                    items.add(new Item(path, size, lastUsed));
+                } catch (IOException ignored) {
+                    // запись удалена параллельно
+                }
+            }
+            items.sort(Comparator.comparing(item -> item.lastUsed));
+            return items;
+        }
+    }
+
+    /**
+     * Удаляет все записи кэша, возвращает число удалённых
+     */
+    public int purge() throws IOException {
+        int count = 0;
+        for (Item item : list()) {
+            if (delete(item))
+                count++;
+        }
+        return count;
+    }
+
+    private boolean delete(Item item) throws IOException {
+        boolean deleted = Files.deleteIfExists(item.path);
+        Files.deleteIfExists(dir.resolve(item.key() + MANIFEST_SUFFIX));
+        Files.deleteIfExists(dir.resolve(item.key() + USED_SUFFIX));
+        return deleted;
+    }
+
+    /**
+     * Отмечает обращение к записи временем изменения её файла .used
+     */
+    private static void touch(Path used) throws IOException {
+        try {
+            Files.setLastModifiedTime(used, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            Files.write(used, new byte[0]);
+        }
+    }
+
+    /**
+     * Суффикс записи кэша по формату архива: результаты zip и tar.gz не смешиваются
+     */
+    private static String suffix(Path archive) {
+        return TarGzUpgrade.isTarGz(archive) ? TAR_GZ_SUFFIX : ZIP_SUFFIX;
+    }
+
+    private static String suffixOf(Path path) {
+        String name = path.getFileName().toString();
+        if (name.endsWith(ZIP_SUFFIX))
+            return ZIP_SUFFIX;
+        if (name.endsWith(TAR_GZ_SUFFIX))
+            return TAR_GZ_SUFFIX;
+        return null;
+    }
+
+    /**
+     * Жёсткая ссылка, а если файловая система её не поддерживает - копия; целевой файл появляется атомарно
+     */
+    private static void publish(Path from, Path to) throws IOException {
+        Path target = to.toAbsolutePath();
+        Path temp = target.resolveSibling("." + target.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+        try {
+            Files.createLink(temp, from);
+        } catch (IOException | UnsupportedOperationException e) {
+            ZipUtils.writeAtomically(target, out -> Files.copy(from, out));
+            return;
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            // если target уже ссылка на тот же файл, rename ничего не делает и temp остаётся
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+
+    /**
+     * Запись кэша
+     */
+    public static class Item {
+        public final Path path;
+        public final long size;
+        public final FileTime lastUsed;
+
+        Item(Path path, long size, FileTime lastUsed) {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+
+        public String key() {
+            return key(path);
+        }
+
+        static String key(Path path) {
+            String name = path.getFileName().toString();
+            return name.substring(0, name.length() - suffixOf(path).length());
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package at.allure.upgrade.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Событие JFR об одном этапе модификации архива, см. {@link UpgradeMetrics}.
+ * Записывается, например, при запуске с -XX:StartFlightRecording
+ */
+@Name("at.allure.upgrade.Stage")
+@Label("Upgrade Stage")
+@Category("Allure Upgrade")
+@Description("Этап модификации архива Allure")
+class StageEvent extends Event {
+    @Label("Archive")
+    String archive;
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Success")
+    boolean success;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+
+    @Label("Entries")
+    long entries;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocatedBytes;
+}
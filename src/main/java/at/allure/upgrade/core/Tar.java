@@ -0,0 +1,479 @@
+package at.allure.upgrade.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Минимальное чтение и запись tar (ustar, длинные имена GNU и pax). Записи читаются и пишутся
+ * потоком, в памяти хранится только текущий заголовок, поэтому размер архива не ограничен.
+ */
+public abstract class Tar {
+    public static final int BLOCK = 512;
+
+    public static final byte REGULAR = '0';
+    public static final byte REGULAR_OLD = 0;
+    public static final byte DIRECTORY = '5';
+    public static final byte GNU_LONG_NAME = 'L';
+    public static final byte GNU_LONG_LINK = 'K';
+    public static final byte PAX_HEADER = 'x';
+    public static final byte PAX_GLOBAL = 'g';
+
+    private static final String GNU_LONG_LINK_NAME = "././@LongLink";
+
+
+    /**
+     * Заголовок записи
+     */
+    public static class Header {
+        public String name;
+        public int mode;
+        public long uid;
+        public long gid;
+        public long size;
+        public long mtime;
+        public byte type;
+        public String linkName = "";
+        public String uname = "";
+        public String gname = "";
+        /**
+         * Все блоки заголовка в исходном виде, включая предшествующие записи GNU и pax
+         */
+        byte[] raw;
+
+        public boolean isDirectory() {
+            return type == DIRECTORY || (isRegular() && name.endsWith("/"));
+        }
+
+        public boolean isRegular() {
+            return type == REGULAR || type == REGULAR_OLD;
+        }
+
+        /**
+         * Размер содержимого в архиве: у ссылок, каталогов и устройств его нет, даже если поле размера заполнено
+         */
+        long dataSize() {
+            return type >= '1' && type <= '6' ? 0 : size;
+        }
+
+        /**
+         * Копия заголовка без исходных блоков, для записи с изменёнными полями
+         */
+        public Header copy() {
+            Header copy = new Header();
+            copy.name = name;
+            copy.mode = mode;
+            copy.uid = uid;
+            copy.gid = gid;
+            copy.size = size;
+            copy.mtime = mtime;
+            copy.type = type;
+            copy.linkName = linkName;
+            copy.uname = uname;
+            copy.gname = gname;
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + Integer.toOctalString(mode) + ", " + size + " байт)";
+        }
+    }
+
+
+    /**
+     * Последовательное чтение записей. Содержимое текущей записи читается через read до следующего вызова next.
+     */
+    public static class Reader {
+        private final InputStream in;
+        private final byte[] block = new byte[BLOCK];
+        private long remaining;
+        private long padding;
+
+
+        public Reader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Следующая запись, либо null в конце архива
+         */
+        public Header next() throws IOException {
+            skip(remaining + padding);
+            remaining = padding = 0;
+
+            byte[] raw = new byte[0];
+            String longName = null;
+            String longLink = null;
+            long paxSize = -1;
+            while (true) {
+                if (!readBlock())
+                    return null;
+                if (isZero(block))
+                    return null; // конец архива: блоки из нулей
+                verifyChecksum(block);
+                byte type = block[156];
+                long size = parseNumber(block, 124, 12);
+                raw = append(raw, block, BLOCK);
+
+                if (type == GNU_LONG_NAME || type == GNU_LONG_LINK || type == PAX_HEADER) {
+                    byte[] data = readData(size);
+                    raw = append(raw, data, data.length);
+                    if (type == GNU_LONG_NAME) {
+                        longName = cString(data, 0, data.length);
+                    } else if (type == GNU_LONG_LINK) {
+                        longLink = cString(data, 0, data.length);
+                    } else {
+                        String[] pax = parsePax(data);
+                        if (pax[0] != null) longName = pax[0];
+                        if (pax[1] != null) longLink = pax[1];
+                        if (pax[2] != null) paxSize = Long.parseLong(pax[2]);
+                    }
+                    continue;
+                }
+
+                Header header = new Header();
+                String prefix = cString(block, 345, 155);
+                String name = cString(block, 0, 100);
+                header.name = longName != null ? longName : prefix.isEmpty() ? name : prefix + "/" + name;
+                header.mode = (int) parseNumber(block, 100, 8);
+                header.uid = parseNumber(block, 108, 8);
+                header.gid = parseNumber(block, 116, 8);
+                header.size = paxSize >= 0 ? paxSize : size;
+                header.mtime = parseNumber(block, 136, 12);
+                header.type = type;
+                header.linkName = longLink != null ? longLink : cString(block, 157, 100);
+                header.uname = cString(block, 265, 32);
+                header.gname = cString(block, 297, 32);
+                header.raw = raw;
+
+                remaining = header.dataSize();
+                padding = padding(remaining);
+                return header;
+            }
+        }
+
+        /**
+         * Читает содержимое текущей записи, -1 - содержимое закончилось
+         */
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0)
+                return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0)
+                throw new EOFException("Архив tar обрезан");
+            remaining -= n;
+            return n;
+        }
+
+        /**
+         * Всё содержимое текущей записи; только для небольших файлов, например конфигурации
+         */
+        public byte[] readAll() throws IOException {
+            if (remaining > Integer.MAX_VALUE - 8)
+                throw new IOException("Файл слишком большой для чтения в память: " + remaining + " байт");
+            byte[] data = new byte[(int) remaining];
+            int pos = 0;
+            while (pos < data.length) {
+                int n = read(data, pos, data.length - pos);
+                pos += n;
+            }
+            return data;
+        }
+
+        private byte[] readData(long size) throws IOException {
+            if (size > Integer.MAX_VALUE - 8)
+                throw new IOException("Некорректный размер расширенного заголовка: " + size);
+            byte[] data = new byte[(int) (size + padding(size))];
+            readFully(data);
+            return data;
+        }
+
+        private boolean readBlock() throws IOException {
+            int pos = 0;
+            while (pos < BLOCK) {
+                int n = in.read(block, pos, BLOCK - pos);
+                if (n < 0) {
+                    if (pos == 0)
+                        return false;
+                    throw new EOFException("Архив tar обрезан");
+                }
+                pos += n;
+            }
+            return true;
+        }
+
+        private void readFully(byte[] data) throws IOException {
+            int pos = 0;
+            while (pos < data.length) {
+                int n = in.read(data, pos, data.length - pos);
+                if (n < 0)
+                    throw new EOFException("Архив tar обрезан");
+                pos += n;
+            }
+        }
+
+        private void skip(long count) throws IOException {
+            byte[] buffer = new byte[8192];
+            while (count > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+                if (n < 0)
+                    throw new EOFException("Архив tar обрезан");
+                count -= n;
+            }
+        }
+    }
+
+
+    /**
+     * Последовательная запись архива. После заголовка должно быть записано ровно size байт содержимого.
+     */
+    public static class Writer {
+        private final OutputStream out;
+        private long remaining;
+        private long padding;
+
+
+        public Writer(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * Записывает исходный заголовок без изменений, вместе с расширенными заголовками
+         */
+        public void putRaw(Header header) throws IOException {
+            closeEntry();
+            out.write(header.raw);
+            begin(header.dataSize());
+        }
+
+        /**
+         * Записывает новый заголовок ustar; длинные имена - через запись GNU LongLink
+         */
+        public void put(Header header) throws IOException {
+            closeEntry();
+            byte[] name = header.name.getBytes(StandardCharsets.UTF_8);
+            byte[] link = header.linkName.getBytes(StandardCharsets.UTF_8);
+            String prefix = "";
+            String shortName = header.name;
+            if (name.length > 100) {
+                int split = splitPoint(header.name);
+                if (split > 0) {
+                    prefix = header.name.substring(0, split);
+                    shortName = header.name.substring(split + 1);
+                } else {
+                    writeLongLink(GNU_LONG_NAME, name);
+                    shortName = header.name.substring(0, Math.min(header.name.length(), 100));
+                }
+            }
+            if (link.length > 100)
+                writeLongLink(GNU_LONG_LINK, link);
+
+            byte[] block = new byte[BLOCK];
+            putString(block, 0, 100, shortName);
+            putOctal(block, 100, 8, header.mode);
+            putOctal(block, 108, 8, header.uid);
+            putOctal(block, 116, 8, header.gid);
+            putOctal(block, 124, 12, header.size);
+            putOctal(block, 136, 12, header.mtime);
+            block[156] = header.type;
+            putString(block, 157, 100, header.linkName);
+            putString(block, 257, 6, "ustar");
+            block[263] = '0';
+            block[264] = '0';
+            putString(block, 265, 32, header.uname);
+            putString(block, 297, 32, header.gname);
+            putString(block, 345, 155, prefix);
+            writeChecksum(block);
+            out.write(block);
+            begin(header.dataSize());
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > remaining)
+                throw new IOException("Содержимое больше размера, указанного в заголовке");
+            out.write(b, off, len);
+            remaining -= len;
+        }
+
+        public void write(byte[] b) throws IOException {
+            write(b, 0, b.length);
+        }
+
+        /**
+         * Дописывает выравнивание текущей записи и два нулевых блока конца архива
+         */
+        public void finish() throws IOException {
+            closeEntry();
+            out.write(new byte[2 * BLOCK]);
+            out.flush();
+        }
+
+        private void begin(long size) {
+            remaining = size;
+            padding = padding(size);
+        }
+
+        private void closeEntry() throws IOException {
+            if (remaining != 0)
+                throw new IOException("Содержимое записи короче размера, указанного в заголовке: не хватает " + remaining + " байт");
+            out.write(new byte[(int) padding]);
+            padding = 0;
+        }
+
+        private void writeLongLink(byte type, byte[] value) throws IOException {
+            byte[] block = new byte[BLOCK];
+            putString(block, 0, 100, GNU_LONG_LINK_NAME);
+            putOctal(block, 100, 8, 0);
+            putOctal(block, 108, 8, 0);
+            putOctal(block, 116, 8, 0);
+            putOctal(block, 124, 12, value.length + 1);
+            putOctal(block, 136, 12, 0);
+            block[156] = type;
+            putString(block, 257, 8, "ustar  ");
+            writeChecksum(block);
+            out.write(block);
+            out.write(value);
+            out.write(new byte[(int) (1 + padding(value.length + 1))]);
+        }
+
+        /**
+         * Позиция '/', по которой имя делится на prefix (до 155 байт) и name (до 100 байт), иначе -1
+         */
+        private static int splitPoint(String name) {
+            for (int i = name.indexOf('/'); i > 0; i = name.indexOf('/', i + 1)) {
+                int prefixLength = name.substring(0, i).getBytes(StandardCharsets.UTF_8).length;
+                int nameLength = name.substring(i + 1).getBytes(StandardCharsets.UTF_8).length;
+                if (prefixLength > 155)
+                    return -1;
+                if (nameLength <= 100 && nameLength > 0)
+                    return i;
+            }
+            return -1;
+        }
+    }
+
+
+    static long padding(long size) {
+        return (BLOCK - size % BLOCK) % BLOCK;
+    }
+
+    /**
+     * Восьмеричное число, либо двоичное в формате GNU (старший бит первого байта)
+     */
+    static long parseNumber(byte[] block, int offset, int length) throws IOException {
+        if ((block[offset] & 0x80) != 0) {
+            long value = block[offset] & 0x7F;
+            for (int i = 1; i < length; i++)
+                value = (value << 8) | (block[offset + i] & 0xFF);
+            return value;
+        }
+        long value = 0;
+        int end = offset + length;
+        int i = offset;
+        while (i < end && (block[i] == ' ' || block[i] == 0))
+            i++;
+        for (; i < end && block[i] != ' ' && block[i] != 0; i++) {
+            if (block[i] < '0' || block[i] > '7')
+                throw new IOException("Некорректный заголовок tar: ожидалось восьмеричное число");
+            value = (value << 3) | (block[i] - '0');
+        }
+        return value;
+    }
+
+    private static void putOctal(byte[] block, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        if (octal.length() > length - 1) {
+            // число не помещается в восьмеричное поле - двоичный формат GNU
+            Arrays.fill(block, offset, offset + length, (byte) 0);
+            for (int i = offset + length - 1; i > offset; i--, value >>>= 8)
+                block[i] = (byte) value;
+            block[offset] = (byte) 0x80;
+            return;
+        }
+        int pad = length - 1 - octal.length();
+        for (int i = 0; i < pad; i++)
+            block[offset + i] = '0';
+        for (int i = 0; i < octal.length(); i++)
+            block[offset + pad + i] = (byte) octal.charAt(i);
+        block[offset + length - 1] = 0;
+    }
+
+    private static void putString(byte[] block, int offset, int length, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, block, offset, Math.min(bytes.length, length));
+    }
+
+    private static String cString(byte[] data, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && data[end] != 0)
+            end++;
+        return new String(data, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static long checksum(byte[] block) {
+        long sum = 0;
+        for (int i = 0; i < BLOCK; i++)
+            sum += (i >= 148 && i < 156) ? ' ' : block[i] & 0xFF;
+        return sum;
+    }
+
+    private static void writeChecksum(byte[] block) {
+        String octal = Long.toOctalString(checksum(block));
+        Arrays.fill(block, 148, 156, (byte) '0');
+        for (int i = 0; i < octal.length(); i++)
+            block[148 + 6 - octal.length() + i] = (byte) octal.charAt(i);
+        block[154] = 0;
+        block[155] = ' ';
+    }
+
+    private static void verifyChecksum(byte[] block) throws IOException {
+        if (parseNumber(block, 148, 8) != checksum(block))
+            throw new IOException("Некорректный заголовок tar: не совпадает контрольная сумма");
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (byte b : block)
+            if (b != 0)
+                return false;
+        return true;
+    }
+
+    private static byte[] append(byte[] raw, byte[] data, int length) {
+        byte[] result = Arrays.copyOf(raw, raw.length + length);
+        System.arraycopy(data, 0, result, raw.length, length);
+        return result;
+    }
+
+    /**
+     * Значения path, linkpath и size из записей pax вида "длина ключ=значение\n"
+     */
+    private static String[] parsePax(byte[] data) {
+        String[] result = new String[3];
+        int pos = 0;
+        while (pos < data.length && data[pos] != 0) {
+            int space = pos;
+            while (space < data.length && data[space] != ' ')
+                space++;
+            if (space >= data.length)
+                break;
+            int length = Integer.parseInt(new String(data, pos, space - pos, StandardCharsets.US_ASCII));
+            if (length <= 0 || pos + length > data.length)
+                break;
+            String record = new String(data, space + 1, pos + length - space - 2, StandardCharsets.UTF_8);
+            int eq = record.indexOf('=');
+            if (eq > 0) {
+                String key = record.substring(0, eq);
+                String value = record.substring(eq + 1);
+                if (key.equals("path")) result[0] = value;
+                else if (key.equals("linkpath")) result[1] = value;
+                else if (key.equals("size")) result[2] = value;
+            }
+            pos += length;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,423 @@
+package at.allure.upgrade.core;
+
+import at.allure.upgrade.utils.AllureUtils;
+import at.allure.upgrade.utils.ZipUtils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Модификация дистрибутива Allure в формате .tgz/.tar.gz за один проход: записи исходного архива
+ * потоком переписываются в новый, config/allure.yml правится на лету, файлы плагина добавляются в конец.
+ * Заголовки неизменённых записей копируются как есть, поэтому права доступа (например, исполняемый bin/allure),
+ * владельцы и время изменения сохраняются. Память не зависит от размера архива.
+ * Файлы в папках плагинов набора, которых нет в новой версии плагина, не переносятся.
+ */
+public class TarGzUpgrade {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int DIRECTORY_MODE = 0755;
+    private static final int FILE_MODE = 0644;
+
+    public final Path source;
+    private final PluginFileSet pluginFiles;
+    private final Consumer<String> log;
+    private final Progress progress;
+    private String allureVersion;
+    /**
+     * Ожидаемые размер и CRC-32 файлов созданного архива, по полному имени записи
+     */
+    private final Map<String, long[]> expected = new LinkedHashMap<>();
+    /**
+     * SHA-256 файлов исходного архива, считаются при переписывании, если включён манифест
+     */
+    private ContentManifest sourceManifest;
+    private String rootDir;
+    private String configName;
+    /**
+     * В архиве уже есть файлы плагинов набора: он модифицировался ранее
+     */
+    private boolean hasPluginFiles;
+    private boolean upToDate;
+    private Path output;
+
+
+    public TarGzUpgrade(Path source, PluginFileSet pluginFiles, Consumer<String> log) {
+        this(source, pluginFiles, log, Progress.NONE);
+    }
+
+    /**
+     * @param progress ход этапов по прочитанным байтам сжатого архива
+     */
+    public TarGzUpgrade(Path source, PluginFileSet pluginFiles, Consumer<String> log, Progress progress) {
+        this.source = source.toAbsolutePath();
+        this.pluginFiles = pluginFiles;
+        this.log = log;
+        this.progress = progress;
+    }
+
+    /**
+     * Распознаёт tar.gz по расширению имени файла
+     */
+    public static boolean isTarGz(Path path) {
+        String name = path.getFileName().toString().toLowerCase();
+        return name.endsWith(".tgz") || name.endsWith(".tar.gz");
+    }
+
+    /**
+     * Выполняет модификацию и проверку, возвращает путь к созданному архиву, либо исходный, если он уже актуален
+     */
+    public Path run() {
+        if (pluginFiles.isEmpty())
+            throw new RuntimeException("Ошибка при добавлении плагина: в папке плагина нет файлов для добавления.");
+        log.accept("Начало потоковой обработки архива " + source + "...");
+        try {
+            // актуальность выясняется в том же проходе: итоговый файл выбирается, когда архив уже переписан
+            output = ZipUtils.writeAtomically(AllureUtils.output(source), this::transfer, this::target);
+        } catch (IOException e) {
+            throw new RuntimeException("Ошибка при сохранении архива: " + e.getMessage(), e);
+        }
+        if (upToDate) {
+            output = source;
+            log.accept("Архив уже содержит актуальные файлы плагина и конфиг, запись не требуется");
+            return output;
+        }
+        log.accept("Архив успешно сохранён!");
+        List<String> mismatches = verify();
+        if (!mismatches.isEmpty())
+            throw new RuntimeException("Проверка архива не пройдена: " + String.join("; ", mismatches));
+        return output;
+    }
+
+    /**
+     * Куда переместить переписанный архив: null, если он уже был актуален. По одному имени
+     * архив пользователя на месте не перезаписывается - только если в нём уже есть файлы плагинов набора.
+     */
+    private Path target() {
+        if (upToDate)
+            return null;
+        Path target = AllureUtils.output(source);
+        return target.equals(source) && !hasPluginFiles ? AllureUtils.update(source) : target;
+    }
+
+    /**
+     * Переписывает записи исходного архива в out, добавляя плагин и правя конфигурацию.
+     * Заодно сверяет архив с набором: если файлы плагина в нём совпадают по размеру и CRC-32 с новыми,
+     * лишних файлов в папках плагинов нет, а конфиг уже содержит строки всех плагинов, архив актуален
+     * и записанное не используется. Частичной замены у tar.gz нет - это один поток gzip, поэтому при любом
+     * отличии архив переписывается целиком.
+     */
+    private void transfer(OutputStream out) throws IOException {
+        expected.clear();
+        sourceManifest = Upgrade.isManifestEnabled() ? new ContentManifest() : null;
+        MessageDigest digest = sourceManifest != null ? ZipIndex.sha256() : null;
+        Set<String> directories = new HashSet<>();
+        List<String> versions = new ArrayList<>();
+        String rootDir = null;
+        boolean hasAllure = false;
+        boolean hasConfig = false;
+        Tar.Header template = null;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        hasPluginFiles = false;
+        boolean changed = false;
+
+        try (Progress.Counter counter = progress.start("stream", Files.size(source));
+             InputStream in = gunzip(source, counter);
+             GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE)) {
+            Tar.Reader reader = new Tar.Reader(in);
+            Tar.Writer writer = new Tar.Writer(gzip);
+            Map<String, PluginFile> pluginPaths = new HashMap<>();
+            for (PluginFile pf : pluginFiles.files)
+                pluginPaths.put(toName(pf.inZipPath), pf);
+            // файлы набора, которых в архиве нет в той же версии
+            Set<String> missing = new HashSet<>(pluginPaths.keySet());
+
+            Tar.Header header;
+            while ((header = reader.next()) != null) {
+                String name = normalize(header.name);
+                if (rootDir == null && !header.isDirectory() && name.indexOf('/') > 0)
+                    rootDir = name.substring(0, name.indexOf('/'));
+                if (header.isDirectory()) {
+                    directories.add(name);
+                    writer.putRaw(header);
+                    continue;
+                }
+                String inZipPath = rootDir != null && name.startsWith(rootDir + "/") ? name.substring(rootDir.length() + 1) : name;
+                if (template == null)
+                    template = header;
+
+                if (inZipPath.equals("bin/allure"))
+                    hasAllure = true;
+                if (inZipPath.startsWith("lib/allure-"))
+                    AllureUtils.versionFrom(inZipPath).ifPresent(versions::add);
+
+                PluginFile pf = pluginPaths.get(inZipPath);
+                if (pf != null || isInPluginDir(inZipPath)) {
+                    // повторная модификация: старая версия файлов плагина заменяется новой, лишние файлы его папки удаляются
+                    hasPluginFiles = true;
+                    if (pf != null && header.isRegular() && header.size == pf.size() && crcOf(reader, buffer, crc) == pf.crc())
+                        missing.remove(inZipPath);
+                    else if (pf == null)
+                        changed = true;
+                    continue;
+                }
+                if (header.isRegular() && inZipPath.equals(toName(Upgrade.ALLURE_CONFIG))) {
+                    hasConfig = true;
+                    configName = header.name;
+                    log.accept("Обновление конфигурационного файла " + Upgrade.ALLURE_CONFIG + "...");
+                    byte[] original = reader.readAll();
+                    if (sourceManifest != null)
+                        sourceManifest.put(header.name, original.length, digest.digest(original));
+                    String content = new String(original, StandardCharsets.UTF_8);
+                    String patched = Upgrade.addPluginRows(content, pluginFiles.configRows());
+                    if (!patched.equals(content))
+                        changed = true;
+                    byte[] updated = patched.getBytes(StandardCharsets.UTF_8);
+                    Tar.Header config = header.copy();
+                    config.size = updated.length;
+                    writer.put(config);
+                    writer.write(updated);
+                    expect(header.name, updated, 0, updated.length);
+                    continue;
+                }
+
+                writer.putRaw(header);
+                crc.reset();
+                int n;
+                while ((n = reader.read(buffer, 0, buffer.length)) > 0) {
+                    writer.write(buffer, 0, n);
+                    crc.update(buffer, 0, n);
+                    if (digest != null)
+                        digest.update(buffer, 0, n);
+                }
+                if (header.isRegular()) {
+                    expected.put(header.name, new long[]{header.size, crc.getValue()});
+                    if (sourceManifest != null)
+                        sourceManifest.put(header.name, header.size, digest.digest());
+                } else if (digest != null) {
+                    digest.reset();
+                }
+            }
+
+            if (!hasAllure)
+                throw new RuntimeException("Выбранный архив не содержит Allure");
+            allureVersion = versions.stream().max(AllureUtils.compareVersions()).orElse("Unrecognized version");
+            log.accept("В архиве найден Allure " + allureVersion);
+            if (!hasConfig)
+                throw new RuntimeException("Ошибка при обновлении конфига: в архиве нет файла " + Upgrade.ALLURE_CONFIG);
+
+            this.rootDir = rootDir == null ? "" : rootDir;
+            String prefix = rootDir == null ? "" : rootDir + "/";
+            long mtime = System.currentTimeMillis() / 1000;
+            for (PluginFile pf : pluginFiles.files) {
+                String name = prefix + toName(pf.inZipPath);
+                for (int slash = name.indexOf('/'); slash > 0; slash = name.indexOf('/', slash + 1)) {
+                    String directory = name.substring(0, slash);
+                    if (directories.add(directory))
+                        writer.put(newHeader(template, directory + "/", Tar.DIRECTORY, DIRECTORY_MODE, 0, mtime));
+                }
+                byte[] bytes = pf.getBytes();
+                writer.put(newHeader(template, name, Tar.REGULAR, FILE_MODE, bytes.length, mtime));
+                writer.write(bytes);
+                expect(name, bytes, 0, bytes.length);
+            }
+            writer.finish();
+            upToDate = !changed && missing.isEmpty();
+            if (!upToDate)
+                log.accept((pluginFiles.plugins.size() == 1 ? "Плагин успешно добавлен: " : "Плагины успешно добавлены: ") +
+                        pluginFiles + " (файлов: " + pluginFiles.size() + ")");
+        }
+    }
+
+    /**
+     * CRC-32 оставшегося содержимого текущей записи
+     */
+    private static long crcOf(Tar.Reader reader, byte[] buffer, CRC32 crc) throws IOException {
+        crc.reset();
+        int n;
+        while ((n = reader.read(buffer, 0, buffer.length)) > 0)
+            crc.update(buffer, 0, n);
+        return crc.getValue();
+    }
+
+    /**
+     * Читает созданный архив и сверяет имена, размеры и CRC-32 файлов с записанными
+     */
+    public List<String> verify() {
+        log.accept("Проверка изменений в архиве...");
+        List<String> mismatches = new ArrayList<>();
+        Map<String, long[]> remaining = new LinkedHashMap<>(expected);
+        ContentManifest outputManifest = sourceManifest != null ? new ContentManifest() : null;
+        MessageDigest digest = outputManifest != null ? ZipIndex.sha256() : null;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        try (Progress.Counter counter = progress.start("verify", Files.size(output()));
+             InputStream in = gunzip(output(), counter)) {
+            Tar.Reader reader = new Tar.Reader(in);
+            Tar.Header header;
+            while ((header = reader.next()) != null) {
+                if (!header.isRegular() || header.isDirectory())
+                    continue;
+                crc.reset();
+                long size = 0;
+                int n;
+                while ((n = reader.read(buffer, 0, buffer.length)) > 0) {
+                    crc.update(buffer, 0, n);
+                    if (digest != null)
+                        digest.update(buffer, 0, n);
+                    size += n;
+                }
+                if (outputManifest != null)
+                    outputManifest.put(header.name, size, digest.digest());
+                long[] before = remaining.remove(header.name);
+                if (before == null)
+                    mismatches.add("Лишний файл в архиве: " + header.name);
+                else if (before[0] != size || before[1] != crc.getValue())
+                    mismatches.add("Изменён файл " + header.name + ": " + size + " байт, crc " + Long.toHexString(crc.getValue()) +
+                            ", ожидалось " + before[0] + " байт, crc " + Long.toHexString(before[1]));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Ошибка при проверке изменений архива: " + e.getMessage(), e);
+        }
+        remaining.keySet().forEach(name -> mismatches.add("Отсутствует файл: " + name));
+        if (outputManifest != null)
+            mismatches.addAll(verifyManifest(outputManifest));
+        if (mismatches.isEmpty()) {
+            log.accept("Проверка успешна: файлы плагина добавлены в архив, остальные файлы не изменены.");
+            if (outputManifest != null)
+                writeManifest(outputManifest);
+        } else {
+            log.accept("Внимание: содержимое архива не совпадает с ожидаемым!");
+            mismatches.forEach(log);
+        }
+        return mismatches;
+    }
+
+    /**
+     * Сверяет SHA-256 файлов созданного архива с исходным и набором плагинов, см. {@link ZipVerifier#verifyManifest}
+     */
+    private List<String> verifyManifest(ContentManifest outputManifest) {
+        try {
+            return ZipVerifier.verifyManifest(sourceManifest, outputManifest, ContentManifest.of(pluginFiles, rootDir),
+                    Collections.singleton(configName));
+        } catch (IOException e) {
+            throw new RuntimeException("Ошибка при проверке изменений архива: " + e.getMessage(), e);
+        }
+    }
+
+    private void writeManifest(ContentManifest outputManifest) {
+        Path manifest = ContentManifest.pathFor(output());
+        try {
+            outputManifest.write(manifest);
+        } catch (IOException e) {
+            throw new RuntimeException("Ошибка при сохранении манифеста: " + e.getMessage(), e);
+        }
+        log.accept("Манифест SHA-256 сохранён: " + manifest);
+    }
+
+    /**
+     * Созданный архив, а до обработки - куда он будет записан, если архив ещё не модифицировался
+     */
+    public Path output() {
+        return output != null ? output : AllureUtils.output(source);
+    }
+
+    /**
+     * Архив уже был актуален и не записывался
+     */
+    public boolean isUpToDate() {
+        return upToDate;
+    }
+
+    /**
+     * Файл лежит в папке одного из плагинов набора, plugins/&lt;папка&gt;/
+     */
+    private boolean isInPluginDir(String inZipPath) {
+        Path dir = PluginFile.pluginDirOf(Paths.get(inZipPath));
+        if (dir == null)
+            return false;
+        for (PluginFileSet.Plugin plugin : pluginFiles.plugins) {
+            if (plugin.dir.equals(dir))
+                return true;
+        }
+        return false;
+    }
+
+    public String getAllureVersion() {
+        return allureVersion;
+    }
+
+    /**
+     * Распаковывающий поток архива; прочитанные сжатые байты учитываются в counter
+     */
+    private static InputStream gunzip(Path path, Progress.Counter counter) throws IOException {
+        return new GZIPInputStream(new BufferedInputStream(counter.count(Files.newInputStream(path)), BUFFER_SIZE), BUFFER_SIZE);
+    }
+
+    private void expect(String name, byte[] bytes, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, off, len);
+        expected.put(name, new long[]{len, crc.getValue()});
+    }
+
+    /**
+     * Заголовок новой записи; владелец берётся из первого файла исходного архива
+     */
+    private static Tar.Header newHeader(Tar.Header template, String name, byte type, int mode, long size, long mtime) {
+        Tar.Header header = new Tar.Header();
+        if (template != null) {
+            header.uid = template.uid;
+            header.gid = template.gid;
+            header.uname = template.uname;
+            header.gname = template.gname;
+        }
+        header.name = name;
+        header.type = type;
+        header.mode = mode;
+        header.size = size;
+        header.mtime = mtime;
+        return header;
+    }
+
+    private static String toName(Path inZipPath) {
+        return ZipUtils.entryName("", inZipPath);
+    }
+
+    /**
+     * Имя записи без ведущих "./" и "/" и без завершающего "/": по нему ищутся rootDir и путь внутри архива
+     */
+    static String normalize(String name) {
+        int start = 0;
+        while (true) {
+            if (name.startsWith("./", start))
+                start += 2;
+            else if (name.startsWith("/", start))
+                start++;
+            else
+                break;
+        }
+        int end = name.length();
+        while (end > start && name.charAt(end - 1) == '/')
+            end--;
+        return name.substring(start, end);
+    }
+}
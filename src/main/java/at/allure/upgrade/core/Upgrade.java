@@ -0,0 +1,503 @@
+package at.allure.upgrade.core;
+
+import at.allure.upgrade.utils.AllureUtils;
+import at.allure.upgrade.utils.ZipUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+/**
+ * Модификация одного архива Allure: добавление файлов плагина, правка config/allure.yml,
+ * сохранение и проверка результата. Не зависит от UI, этапы можно вызывать по отдельности,
+ * после чего модификацию нужно закрыть.
+ */
+public class Upgrade implements AutoCloseable {
+    public static final Path ALLURE_CONFIG = Paths.get("config", "allure.yml");
+
+    public final Path source;
+    /**
+     * Файлы плагина могут ещё загружаться: чтение архива идёт параллельно с их загрузкой
+     */
+    private final CompletableFuture<PluginFileSet> pluginFiles;
+    private final Consumer<String> log;
+    public final UpgradeMetrics metrics;
+    /**
+     * Куда сообщается ход этапов в байтах: окно или консоль
+     */
+    private Progress progress = Progress.NONE;
+    private Zip zip;
+    /**
+     * Записи созданного архива, собранные при сохранении: по ним проверяется результат
+     */
+    private ZipWriter.Output written;
+    /**
+     * Архив по содержимому уже содержит актуальные файлы плагина и конфиг, запись пропущена
+     */
+    private boolean upToDate;
+    /**
+     * Созданный архив; у tar.gz и актуального архива известен только после обработки
+     */
+    private Path result;
+    /**
+     * SHA-256 файлов исходного архива, считаются до сохранения: архив может перезаписываться на месте
+     */
+    private ContentManifest sourceManifest;
+    /**
+     * SHA-256 файлов созданного архива, записываются рядом с ним после успешной проверки
+     */
+    private ContentManifest outputManifest;
+    private String allureVersion;
+
+
+    public Upgrade(Path source, PluginFileSet pluginFiles, Consumer<String> log) {
+        this(source, CompletableFuture.completedFuture(pluginFiles), log);
+    }
+
+    public Upgrade(Path source, CompletableFuture<PluginFileSet> pluginFiles, Consumer<String> log) {
+        this(source, pluginFiles, log, new UpgradeMetrics(source.toAbsolutePath().toString()));
+    }
+
+    public Upgrade(Path source, CompletableFuture<PluginFileSet> pluginFiles, Consumer<String> log, UpgradeMetrics metrics) {
+        this.source = source.toAbsolutePath();
+        this.pluginFiles = pluginFiles;
+        this.log = log;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Добавляет строки плагинов в список plugins конфигурации одной правкой, пропуская уже имеющиеся
+     */
+    public static String addPluginRows(String content, List<String> rows) {
+        StringBuilder missing = new StringBuilder();
+        for (String row : rows) {
+            if (!content.contains(row))
+                missing.append(row).append('\n');
+        }
+        if (missing.length() == 0) {
+            return content;
+        }
+        int firstLineEnd = content.indexOf('\n');
+        if (firstLineEnd == -1) {
+            return content + "\n" + missing.substring(0, missing.length() - 1);
+        }
+        return content.substring(0, firstLineEnd + 1) + missing + content.substring(firstLineEnd + 1);
+    }
+
+    /**
+     * Архив .tgz/.tar.gz обрабатывается за один проход целиком через {@link #run()}, без отдельных этапов
+     */
+    public boolean isTarGz() {
+        return TarGzUpgrade.isTarGz(source);
+    }
+
+    /**
+     * Выполняет все этапы и возвращает путь к созданному архиву
+     */
+    public Path run() {
+        if (isTarGz()) {
+            TarGzUpgrade tarGz = new TarGzUpgrade(source, pluginFiles(), log, progress);
+            // все этапы выполняются за один проход, поэтому измеряются вместе
+            try (UpgradeMetrics.Stage stage = metrics.start("stream")) {
+                result = tarGz.run();
+                upToDate = tarGz.isUpToDate();
+                stage.read(size(source)).written(upToDate ? 0 : size(result)).entries(pluginFiles().size());
+                stage.done();
+                return result;
+            } finally {
+                allureVersion = tarGz.getAllureVersion();
+            }
+        }
+        try {
+            open();
+            validateAllure();
+            addPluginFiles();
+            updateConfig();
+            Path result = save();
+            List<String> mismatches = verify();
+            if (!mismatches.isEmpty())
+                throw new RuntimeException("Проверка архива не пройдена: " + String.join("; ", mismatches));
+            return result;
+        } finally {
+            close();
+        }
+    }
+
+    public Zip open() {
+        log.accept("Начало обработки файла " + source + "...");
+        try (UpgradeMetrics.Stage stage = metrics.start("read");
+             Progress.Counter counter = progress.start("read", -1)) {
+            try {
+                // модифицированный ранее архив может перезаписываться на месте, поэтому его central directory читается в кучу
+                zip = new Zip(source, AllureUtils.isUpdated(source));
+            } catch (Exception e) {
+                throw new RuntimeException("Не удалось открыть архив, " + e.getMessage(), e);
+            }
+            counter.add(zip.index.centralDirectorySize);
+            stage.read(zip.index.centralDirectorySize).entries(zip.index.entries.size());
+            stage.done();
+        }
+        log.accept("Файл успешно считан и распознан как архив");
+        return zip;
+    }
+
+    /**
+     * Проверяет, что архив содержит Allure, и возвращает его версию
+     */
+    public String validateAllure() {
+        try (UpgradeMetrics.Stage stage = metrics.start("validate")) {
+            if (!AllureUtils.isAllureZip(zip))
+                throw new RuntimeException("Выбранный архив не содержит Allure");
+            allureVersion = AllureUtils.parseAllureVersion(zip);
+            stage.done();
+        }
+        log.accept("В архиве найден Allure " + allureVersion + ", начинается модификация...");
+        return allureVersion;
+    }
+
+    public void addPluginFiles() {
+        addPluginFiles(pf -> {
+        });
+    }
+
+    /**
+     * Добавляет файлы плагина, после каждого файла вызывает onAdded. Файлы, которые уже есть в архиве с тем же
+     * размером и CRC-32, не заменяются; файлы в папках плагинов, которых нет в наборе, удаляются - как и в tar.gz.
+     */
+    public void addPluginFiles(Consumer<PluginFile> onAdded) {
+        PluginFileSet pluginFiles = pluginFiles();
+        if (pluginFiles.isEmpty())
+            throw new RuntimeException("Ошибка при добавлении плагина: в папке плагина нет файлов для добавления.");
+        int unchanged = 0;
+        int removed = 0;
+        try (UpgradeMetrics.Stage stage = metrics.start("add");
+             Progress.Counter counter = progress.start("add", pluginFiles.totalSize())) {
+            for (PluginFile pf : pluginFiles.files) {
+                if (isUnchanged(pf)) {
+                    unchanged++;
+                    counter.add(pf.size());
+                    continue;
+                }
+                log.accept("Добавление файла: " + pf.inZipPath);
+                byte[] bytes = pf.getBytes();
+                // файлы плагина сжаты один раз на набор, в архив пишутся готовые сжатые байты
+                zip.add(pf.inZipPath, bytes, pluginFiles.compressed(pf));
+                stage.read(bytes.length).entries(1);
+                counter.add(bytes.length);
+                onAdded.accept(pf);
+            }
+            Set<Path> pluginPaths = new HashSet<>();
+            for (PluginFile pf : pluginFiles.files)
+                pluginPaths.add(pf.inZipPath);
+            for (PluginFileSet.Plugin plugin : pluginFiles.plugins) {
+                for (Path stale : zip.withPrefix(ZipUtils.entryName("", plugin.dir) + "/")) {
+                    if (pluginPaths.contains(stale))
+                        continue;
+                    log.accept("Удаление файла, которого нет в новой версии плагина: " + stale);
+                    zip.remove(stale);
+                    removed++;
+                }
+            }
+            stage.done();
+        } catch (Exception e) {
+            throw new RuntimeException("Ошибка при добавлении плагина: " + e.getMessage(), e);
+        }
+        if (unchanged > 0 || removed > 0)
+            log.accept("Файлы плагина уже в архиве и не изменились: " + unchanged + ", заменено: " + (pluginFiles.size() - unchanged) +
+                    ", удалено: " + removed);
+        log.accept((pluginFiles.plugins.size() == 1 ? "Плагин успешно добавлен: " : "Плагины успешно добавлены: ") +
+                pluginFiles + " (файлов: " + pluginFiles.size() + ")");
+    }
+
+    /**
+     * Файл плагина уже есть в архиве с тем же размером и CRC-32 - заменять его не нужно
+     */
+    private boolean isUnchanged(PluginFile pf) throws IOException {
+        ZipIndex.Entry entry = zip.entries.get(pf.inZipPath);
+        return entry != null && !entry.isDirectory() && entry.size == pf.size() && entry.crc == pf.crc();
+    }
+
+    public void updateConfig() {
+        log.accept("Обновление конфигурационного файла " + ALLURE_CONFIG + "...");
+        try (UpgradeMetrics.Stage stage = metrics.start("config")) {
+            zip.updateContent(ALLURE_CONFIG, content -> {
+                String updated = addPluginRows(content, pluginFiles().configRows());
+                stage.read(content.length()).written(updated.length()).entries(1);
+                return updated;
+            });
+            stage.done();
+        } catch (Exception e) {
+            throw new RuntimeException("Ошибка при обновлении конфига: " + e.getMessage(), e);
+        }
+        log.accept(zip.changes().containsKey(ALLURE_CONFIG) ? "Конфиг успешно обновлён" : "Конфиг уже содержит строки плагинов");
+    }
+
+    /**
+     * Сохраняет архив рядом с исходным и возвращает путь к нему. Если по содержимому архив уже актуален -
+     * файлы плагина совпадают по размеру и CRC-32, лишних нет, конфиг содержит строки плагинов, -
+     * архив не записывается, независимо от его имени, и результатом считается исходный архив.
+     */
+    public Path save() {
+        if (zip.changes().isEmpty() && zip.removed().isEmpty()) {
+            upToDate = true;
+            result = source;
+            log.accept("Архив уже содержит актуальные файлы плагина и конфиг, запись не требуется");
+            return result;
+        }
+        if (isManifestEnabled())
+            hashSource();
+        log.accept("Сохранение архива...");
+        try (UpgradeMetrics.Stage stage = metrics.start("save");
+             Progress.Counter counter = progress.start("save", estimatedSize())) {
+            written = zip.save(output(), counter);
+            stage.read(size(source)).written(written.size).entries(written.entries.size());
+            stage.done();
+        } catch (Exception e) {
+            throw new RuntimeException("Ошибка при сохранении архива: " + e.getMessage(), e);
+        }
+        long spilled = zip.store().spilledBytes();
+        if (spilled > 0)
+            log.accept("Изменённые файлы не поместились в бюджет памяти, на диск выгружено " + spilled + " байт");
+        log.accept("Архив успешно сохранён!");
+        result = output();
+        return result;
+    }
+
+    /**
+     * Сверяет созданный архив с исходным, возвращает список расхождений
+     */
+    public List<String> verify() {
+        if (upToDate) {
+            log.accept("Архив не изменялся, проверка не требуется");
+            return Collections.emptyList();
+        }
+        log.accept("Проверка изменений в архиве...");
+        try {
+            List<String> mismatches = verifyEntries();
+            if (Boolean.getBoolean("Updated.allure.verify.content"))
+                mismatches.addAll(verifyContent());
+            if (sourceManifest != null)
+                mismatches.addAll(verifyManifest());
+            if (mismatches.isEmpty()) {
+                log.accept("Проверка успешна: файлы плагина добавлены в архив, остальные файлы не изменены.");
+                if (outputManifest != null) {
+                    Path manifest = ContentManifest.pathFor(output());
+                    outputManifest.write(manifest);
+                    log.accept("Манифест SHA-256 сохранён: " + manifest);
+                }
+            } else {
+                log.accept("Внимание: содержимое архива не совпадает с ожидаемым!");
+                mismatches.forEach(log);
+            }
+            return mismatches;
+        } catch (Exception e) {
+            throw new RuntimeException("Ошибка при проверке изменений архива: " + e.getMessage(), e);
+        }
+    }
+
+    private List<String> verifyEntries() throws IOException {
+        try (UpgradeMetrics.Stage stage = metrics.start("verify")) {
+            List<String> mismatches;
+            if (written != null) {
+                // CRC-32 новых файлов посчитаны по записанным байтам, содержимое заново не распаковывается
+                Map<Path, ZipVerifier.Summary> result = new LinkedHashMap<>();
+                for (ZipWriter.Written entry : written.entries)
+                    result.put(zip.toInZipPath(entry.name), new ZipVerifier.Summary(entry.size, entry.crc));
+                mismatches = ZipVerifier.verify(zip, result, pluginFiles().files, Collections.singleton(ALLURE_CONFIG));
+                long size = Files.size(output());
+                if (size != written.size)
+                    mismatches.add("Размер файла " + output().getFileName() + " " + size + " байт, записано " + written.size);
+                // записанное сверяется с central directory на диске: недописанный или повреждённый файл не пройдёт
+                ZipIndex after = ZipIndex.read(output(), true);
+                mismatches.addAll(ZipVerifier.verifyWritten(written, after));
+                stage.read(after.centralDirectorySize).entries(written.entries.size());
+            } else {
+                try (Zip zipAfter = new Zip(output())) {
+                    mismatches = ZipVerifier.verify(zip, zipAfter, pluginFiles().files, Collections.singleton(ALLURE_CONFIG));
+                    stage.read(zipAfter.index.centralDirectorySize).entries(zipAfter.index.entries.size());
+                }
+            }
+            stage.done();
+            return mismatches;
+        }
+    }
+
+    /**
+     * Распаковывает все файлы созданного архива параллельно и сверяет их CRC-32, см. {@link ZipVerifier#verifyContent(Zip)}
+     */
+    private List<String> verifyContent() throws IOException {
+        log.accept("Проверка содержимого всех файлов архива...");
+        try (UpgradeMetrics.Stage stage = metrics.start("verify-content");
+             Zip zipAfter = new Zip(output());
+             Progress.Counter counter = progress.start("verify-content", totalSize(zipAfter.index))) {
+            List<String> mismatches = ZipVerifier.verifyContent(zipAfter, counter);
+            stage.read(size(output())).entries(zipAfter.index.entries.size());
+            stage.done();
+            return mismatches;
+        }
+    }
+
+    /**
+     * Хеширует файлы исходного архива параллельно, до его перезаписи
+     */
+    private void hashSource() {
+        log.accept("Подсчёт SHA-256 файлов исходного архива...");
+        try (UpgradeMetrics.Stage stage = metrics.start("manifest");
+             Progress.Counter counter = progress.start("manifest", totalSize(zip.index))) {
+            sourceManifest = ContentManifest.of(zip.index, counter);
+            stage.read(size(source)).entries(sourceManifest.size());
+            stage.done();
+        } catch (Exception e) {
+            throw new RuntimeException("Ошибка при подсчёте SHA-256 исходного архива: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Хеширует файлы созданного архива и сверяет их с исходным архивом и набором плагинов побайтно,
+     * см. {@link ZipVerifier#verifyManifest}
+     */
+    private List<String> verifyManifest() throws IOException {
+        log.accept("Проверка SHA-256 всех файлов архива...");
+        try (UpgradeMetrics.Stage stage = metrics.start("verify-manifest")) {
+            ContentManifest output;
+            try (Zip zipAfter = new Zip(output());
+                 Progress.Counter counter = progress.start("verify-manifest", totalSize(zipAfter.index))) {
+                output = ContentManifest.of(zipAfter.index, counter);
+            }
+            Set<String> allowedChanges = new HashSet<>();
+            allowedChanges.add(ZipUtils.entryName(zip.rootDir, ALLURE_CONFIG));
+            for (Path removed : zip.removed())
+                allowedChanges.add(ZipUtils.entryName(zip.rootDir, removed));
+            List<String> mismatches = ZipVerifier.verifyManifest(sourceManifest, output, ContentManifest.of(pluginFiles(), zip.rootDir),
+                    allowedChanges);
+            outputManifest = output;
+            stage.read(size(output())).entries(output.size());
+            stage.done();
+            return mismatches;
+        }
+    }
+
+    /**
+     * Оценка размера сохраняемого архива для хода записи: исходный архив плюс несжатые изменения
+     */
+    private long estimatedSize() {
+        long total = size(source);
+        for (ContentStore.Content content : zip.changes().values())
+            total += content.size();
+        return total;
+    }
+
+    /**
+     * Сколько байт распаковывается при полном чтении архива
+     */
+    private static long totalSize(ZipIndex index) {
+        long total = 0;
+        for (ZipIndex.Entry entry : index.entries)
+            total += entry.size;
+        return total;
+    }
+
+    /**
+     * Сверка SHA-256 и манифест рядом с архивом, -DUpdated.allure.verify.manifest=true
+     */
+    static boolean isManifestEnabled() {
+        return Boolean.getBoolean("Updated.allure.verify.manifest");
+    }
+
+    /**
+     * Освобождает память изменённых файлов и удаляет их файл выгрузки
+     */
+    @Override
+    public void close() {
+        if (zip == null)
+            return;
+        try {
+            zip.close();
+        } catch (IOException e) {
+            log.accept("Не удалось удалить временный файл: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Созданный архив, а до сохранения - куда он будет записан. Архив с именем модифицированного
+     * перезаписывается на месте, только если в нём уже есть файлы плагинов набора, иначе результат
+     * сохраняется рядом под новым именем: исходный архив пользователя не портится из-за одного имени.
+     */
+    public Path output() {
+        if (result != null)
+            return result;
+        Path output = AllureUtils.output(source);
+        if (output.equals(source) && zip != null && !hasPluginFiles())
+            return AllureUtils.update(source);
+        return output;
+    }
+
+    /**
+     * Модифицированный ранее архив обновляется на месте, а не рядом под новым именем
+     */
+    public boolean isInPlace() {
+        return output().equals(source);
+    }
+
+    /**
+     * В архиве уже есть файлы хотя бы одного плагина из набора - он модифицировался ранее
+     */
+    private boolean hasPluginFiles() {
+        for (PluginFileSet.Plugin plugin : pluginFiles().plugins) {
+            if (!zip.withPrefix(ZipUtils.entryName("", plugin.dir) + "/").isEmpty())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Архив уже был актуален и не записывался
+     */
+    public boolean isUpToDate() {
+        return upToDate;
+    }
+
+    /**
+     * Слушатель хода этапов в байтах; задаётся до запуска этапов
+     */
+    public void setProgress(Progress progress) {
+        this.progress = progress;
+    }
+
+    public String getAllureVersion() {
+        return allureVersion;
+    }
+
+    /**
+     * Дожидается загрузки файлов плагина
+     */
+    private PluginFileSet pluginFiles() {
+        PluginFileSet result;
+        try {
+            result = pluginFiles.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        if (result == null)
+            throw new RuntimeException("Файлы плагина не загружены");
+        return result;
+    }
+
+    private static long size(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package at.allure.upgrade.core;
+
+import at.allure.upgrade.utils.ZipUtils;
+import jdk.jfr.FlightRecorder;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Метрики этапов модификации одного архива: время, прочитанные и записанные байты, число записей
+ * и объём памяти, выделенной потоком этапа. Каждый этап также публикуется событием JFR {@link StageEvent}.
+ * Отчёт в JSON пишется в файл из -DUpdated.allure.metrics (или параметра --metrics консольного режима).
+ */
+public class UpgradeMetrics {
+    /**
+     * Выделенная память считается, только если она будет показана: в окне, в отчёте JSON или в событиях JFR.
+     * Получение ThreadMXBean загружает JMX и удлиняет запуск консольного режима
+     */
+    private static volatile boolean measureAllocations;
+
+    /**
+     * Что измеряется: путь архива, либо название общего этапа, например загрузки плагина
+     */
+    public final String name;
+    private final List<Stage> stages = Collections.synchronizedList(new ArrayList<>());
+
+
+    public UpgradeMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Путь к файлу отчёта из -DUpdated.allure.metrics, либо null, если отчёт не нужен
+     */
+    public static Path reportPath() {
+        String path = System.getProperty("Updated.allure.metrics");
+        return path == null || path.isEmpty() ? null : Paths.get(path);
+    }
+
+    /**
+     * Начинает этап; этап завершается вызовом {@link Stage#close()}
+     */
+    public Stage start(String stage) {
+        return new Stage(this, stage);
+    }
+
+    /**
+     * Включает подсчёт выделенной памяти для всех этапов, даже без отчёта JSON и JFR
+     */
+    public static void measureAllocations() {
+        measureAllocations = true;
+    }
+
+    private static boolean measuresAllocations() {
+        return measureAllocations || reportPath() != null || FlightRecorder.isInitialized();
+    }
+
+    public List<Stage> stages() {
+        synchronized (stages) {
+            return new ArrayList<>(stages);
+        }
+    }
+
+    /**
+     * Строки вида "save: 120 мс, прочитано 1024 байт, записано 2048 байт, записей 10, выделено 4096 байт"
+     */
+    public List<String> summary() {
+        List<String> lines = new ArrayList<>();
+        for (Stage stage : stages()) {
+            lines.add(stage.stage + ": " + stage.nanos / 1_000_000 + " мс, прочитано " + stage.bytesRead +
+                    " байт, записано " + stage.bytesWritten + " байт, записей " + stage.entries +
+                    (stage.allocatedBytes >= 0 ? ", выделено " + stage.allocatedBytes + " байт" : "") +
+                    (stage.success ? "" : ", с ошибкой"));
+        }
+        return lines;
+    }
+
+    public long totalNanos() {
+        return stages().stream().mapToLong(stage -> stage.nanos).sum();
+    }
+
+    /**
+     * Пишет отчёт по нескольким архивам атомарно, чтобы при сбое не остался недописанный JSON
+     */
+    public static void writeReport(Path path, List<UpgradeMetrics> runs) throws IOException {
+        StringBuilder json = new StringBuilder("{\n  \"runs\": [");
+        for (int i = 0; i < runs.size(); i++) {
+            json.append(i == 0 ? "\n" : ",\n");
+            runs.get(i).appendJson(json, "    ");
+        }
+        json.append("\n  ]\n}\n");
+        ZipUtils.writeAtomically(path, out -> {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            writer.write(json.toString());
+            writer.flush();
+        });
+    }
+
+    void appendJson(StringBuilder json, String indent) {
+        json.append(indent).append("{\"name\": ").append(quote(name))
+                .append(", \"totalNanos\": ").append(totalNanos())
+                .append(", \"stages\": [");
+        List<Stage> list = stages();
+        for (int i = 0; i < list.size(); i++) {
+            Stage stage = list.get(i);
+            json.append(i == 0 ? "\n" : ",\n").append(indent).append("  {")
+                    .append("\"stage\": ").append(quote(stage.stage))
+                    .append(", \"success\": ").append(stage.success)
+                    .append(", \"wallNanos\": ").append(stage.nanos)
+                    .append(", \"bytesRead\": ").append(stage.bytesRead)
+                    .append(", \"bytesWritten\": ").append(stage.bytesWritten)
+                    .append(", \"entries\": ").append(stage.entries)
+                    .append(", \"allocatedBytes\": ").append(stage.allocatedBytes)
+                    .append("}");
+        }
+        json.append(list.isEmpty() ? "]}" : "\n" + indent + "]}");
+    }
+
+    private static String quote(String value) {
+        if (value == null)
+            return "null";
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    else
+                        quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Память, выделенная текущим потоком с момента его запуска, либо -1, если JVM это не поддерживает
+     */
+    private static long allocatedBytes() {
+        if (Threads.MX_BEAN instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) Threads.MX_BEAN;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * ThreadMXBean запрашивается при первом подсчёте памяти, а не при загрузке класса
+     */
+    private static final class Threads {
+        static final java.lang.management.ThreadMXBean MX_BEAN = ManagementFactory.getThreadMXBean();
+    }
+
+
+    /**
+     * Один этап. Счётчики заполняются внутри этапа, время и выделенная память фиксируются при закрытии.
+     * Выделенная память считается только для потока, запустившего этап, без потоков сжатия.
+     */
+    public static class Stage implements AutoCloseable {
+        private final UpgradeMetrics metrics;
+        /**
+         * Событие JFR создаётся, только если JFR уже запущен: иначе первое событие загружает
+         * метаданные JFR, что заметно удлиняет запуск одиночной модификации
+         */
+        private final StageEvent event = FlightRecorder.isInitialized() ? new StageEvent() : null;
+        private final long start;
+        private final long allocatedAtStart;
+        public final String stage;
+        public long nanos;
+        public long bytesRead;
+        public long bytesWritten;
+        public long entries;
+        public long allocatedBytes = -1;
+        public boolean success;
+
+
+        Stage(UpgradeMetrics metrics, String stage) {
+            this.metrics = metrics;
+            this.stage = stage;
+            this.allocatedAtStart = measuresAllocations() ? allocatedBytes() : -1;
+            if (event != null)
+                event.begin();
+            this.start = System.nanoTime();
+        }
+
+        public Stage read(long bytes) {
+            bytesRead += bytes;
+            return this;
+        }
+
+        public Stage written(long bytes) {
+            bytesWritten += bytes;
+            return this;
+        }
+
+        public Stage entries(long count) {
+            entries += count;
+            return this;
+        }
+
+        /**
+         * Отмечает этап успешным; незавершённый так этап попадает в отчёт с success=false
+         */
+        public void done() {
+            success = true;
+        }
+
+        @Override
+        public void close() {
+            nanos = System.nanoTime() - start;
+            if (allocatedAtStart >= 0) {
+                long allocatedAtEnd = allocatedBytes();
+                if (allocatedAtEnd >= 0)
+                    allocatedBytes = allocatedAtEnd - allocatedAtStart;
+            }
+            if (event != null && event.shouldCommit()) {
+                event.end();
+                event.archive = metrics.name;
+                event.stage = stage;
+                event.success = success;
+                event.bytesRead = bytesRead;
+                event.bytesWritten = bytesWritten;
+                event.entries = entries;
+                event.allocatedBytes = allocatedBytes;
+                event.commit();
+            }
+            metrics.stages.add(this);
+        }
+    }
+}
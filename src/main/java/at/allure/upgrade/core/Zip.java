@@ -1,74 +1,284 @@
 package at.allure.upgrade.core;
 
-import at.allure.upgrade.utils.AllureUtils;
 import at.allure.upgrade.utils.ZipUtils;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Deflater;
 import java.util.function.UnaryOperator;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
+/**
+ * Архив, построенный по central directory. Содержимое файлов считывается только по запросу,
+ * хранятся лишь добавленные и изменённые файлы - в {@link ContentStore} с ограниченным бюджетом памяти.
+ * После сохранения архив нужно закрыть, чтобы удалить файл выгрузки хранилища.
+ */
 @SuppressWarnings("UnusedReturnValue")
-public class Zip {
+public class Zip implements Closeable {
     public final Path path;
-    public final Map<Path, byte[]> files;
     public final String rootDir;
+    public final ZipIndex index;
+    /**
+     * Записи исходного архива по пути без rootDir
+     */
+    public final Map<Path, ZipIndex.Entry> entries;
+    /**
+     * Новые и изменённые файлы, которые при сохранении нужно сжать заново
+     */
+    private final Map<Path, ContentStore.Content> changes = new LinkedHashMap<>();
+    /**
+     * Сжатие изменений начинается сразу при добавлении, параллельно с остальными этапами
+     */
+    private final Map<Path, ForkJoinTask<ParallelDeflater.Compressed>> compressing = new LinkedHashMap<>();
+    /**
+     * Файлы исходного архива, которые при сохранении не записываются
+     */
+    private final Set<Path> removed = new LinkedHashSet<>();
+    private final ContentStore store = ContentStore.fromSystemProperties();
+    private final ParallelDeflater deflater = new ParallelDeflater(ForkJoinPool.commonPool(), Deflater.DEFAULT_COMPRESSION, store);
 
 
     public Zip(Path path) {
+        this(path, false);
+    }
+
+    /**
+     * @param detached central directory читается в кучу, чтобы архив можно было перезаписать на месте
+     */
+    public Zip(Path path, boolean detached) {
         this.path = path;
-        this.files = new LinkedHashMap<>();
-        String tempRootDir = null;
-        try (InputStream inputStream = Files.newInputStream(path);
-             ZipInputStream zipInputStream = new ZipInputStream(inputStream)) {
-            ZipEntry entry;
-            while ((entry = zipInputStream.getNextEntry()) != null) {
-                if (entry.isDirectory())
-                    continue;
-                Path inZipPath = Paths.get(entry.getName());
-                if (inZipPath.getNameCount() > 1) { // если путь может содержать rootDir
-                    if (tempRootDir == null) {
-                        tempRootDir = inZipPath.getName(0).toString();
-                    }
-                    // если путь содержит rootDir, вычитаем его
-                    if (inZipPath.getName(0).toString().equals(tempRootDir)) {
-                        inZipPath = inZipPath.subpath(1, inZipPath.getNameCount());
-                    }
-                }
-                // кладём без rootDir
-                files.put(inZipPath, ZipUtils.readStreamToByteArray(zipInputStream));
-            }
+        this.entries = new LinkedHashMap<>();
+        try {
+            index = ZipIndex.read(path, detached);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        rootDir = tempRootDir == null ? "" : tempRootDir;
+        rootDir = findRootDir(index);
+        for (ZipIndex.Entry entry : index.entries) {
+            // кладём без rootDir
+            entries.put(toInZipPath(entry.name()), entry);
+        }
+    }
+
+    /**
+     * Первый каталог пути первого вложенного файла, иначе ""
+     */
+    private static String findRootDir(ZipIndex index) {
+        for (ZipIndex.Entry entry : index.entries) {
+            if (entry.isDirectory())
+                continue;
+            Path inZipPath = Paths.get(entry.name());
+            if (inZipPath.getNameCount() > 1) // если путь может содержать rootDir
+                return inZipPath.getName(0).toString();
+        }
+        return "";
+    }
+
+    Path toInZipPath(String entryName) {
+        Path inZipPath = Paths.get(entryName);
+        // если путь содержит rootDir, вычитаем его
+        if (inZipPath.getNameCount() > 1 && inZipPath.getName(0).toString().equals(rootDir)) {
+            inZipPath = inZipPath.subpath(1, inZipPath.getNameCount());
+        }
+        return inZipPath;
+    }
+
+    /**
+     * Пути всех файлов архива (без каталогов и rootDir), включая добавленные
+     */
+    public Set<Path> paths() {
+        Set<Path> paths = new LinkedHashSet<>();
+        entries.forEach((inZipPath, entry) -> {
+            if (!entry.isDirectory() && !removed.contains(inZipPath))
+                paths.add(inZipPath);
+        });
+        paths.addAll(changes.keySet());
+        return paths;
+    }
+
+    /**
+     * Файлы исходного архива, путь которых (без rootDir, через '/') начинается с prefix.
+     * Ищутся по упорядоченному индексу central directory, без перебора всех записей.
+     */
+    public List<Path> withPrefix(String prefix) {
+        String fullPrefix = rootDir.isEmpty() ? prefix : rootDir + "/" + prefix;
+        List<Path> result = new ArrayList<>();
+        for (ZipIndex.Entry entry : index.withPrefix(fullPrefix)) {
+            if (!entry.isDirectory())
+                result.add(toInZipPath(entry.name()));
+        }
+        return result;
+    }
+
+    public boolean contains(Path inZipPath) {
+        if (changes.containsKey(inZipPath))
+            return true;
+        ZipIndex.Entry entry = entries.get(inZipPath);
+        return entry != null && !entry.isDirectory() && !removed.contains(inZipPath);
+    }
+
+    /**
+     * Содержимое файла: изменённое, либо распакованное из исходного архива
+     */
+    public byte[] read(Path inZipPath) throws IOException {
+        return source(inZipPath).readAll();
+    }
+
+    /**
+     * Содержимое файла для чтения потоком или передачи в канал: изменённое, либо запись исходного архива
+     */
+    public ByteSource source(Path inZipPath) throws IOException {
+        ContentStore.Content changed = changes.get(inZipPath);
+        if (changed != null)
+            return ByteSource.of(changed);
+        ZipIndex.Entry entry = entries.get(inZipPath);
+        if (entry == null || entry.isDirectory() || removed.contains(inZipPath))
+            throw new IOException("В архиве нет файла " + inZipPath);
+        return ZipIndex.source(path, entry);
+    }
+
+    /**
+     * Новые и изменённые файлы
+     */
+    public Map<Path, ContentStore.Content> changes() {
+        return Collections.unmodifiableMap(changes);
+    }
+
+    /**
+     * Удалённые файлы исходного архива
+     */
+    public Set<Path> removed() {
+        return Collections.unmodifiableSet(removed);
+    }
+
+    /**
+     * Хранилище содержимого изменений: сколько занято в памяти и выгружено на диск
+     */
+    public ContentStore store() {
+        return store;
     }
 
 
     public Zip add(Path inZipPath, byte[] bytes) {
-        files.put(inZipPath, bytes);
+        return add(inZipPath, ByteSource.of(bytes));
+    }
+
+    /**
+     * Добавляет файл из источника: содержимое передаётся в хранилище без промежуточного массива,
+     * файл с диска при выгрузке копируется средствами ОС. Файл больше 2 ГБ заранее не сжимается -
+     * он сжимается потоком при сохранении архива.
+     */
+    public Zip add(Path inZipPath, ByteSource source) {
+        ContentStore.Content content;
+        try {
+            content = store.put(source);
+        } catch (IOException e) {
+            throw new RuntimeException("Не удалось прочитать " + source + ": " + e.getMessage(), e);
+        }
+        ContentStore.Content previous = changes.put(inZipPath, content);
+        ForkJoinTask<ParallelDeflater.Compressed> replaced = content.isBuffered()
+                ? compressing.put(inZipPath, deflater.submit(content)) : compressing.remove(inZipPath);
+        removed.remove(inZipPath);
+        if (previous != null) {
+            store.release(previous);
+            release(replaced);
+        }
+        return this;
+    }
+
+    /**
+     * Добавляет файл, сжатый заранее: при сохранении его сжатые байты записываются как есть.
+     * Содержимое не копируется в хранилище - массив и сжатые данные принадлежат вызывающему.
+     */
+    public Zip add(Path inZipPath, byte[] bytes, ForkJoinTask<ParallelDeflater.Compressed> compressed) {
+        ContentStore.Content previous = changes.put(inZipPath, ContentStore.Content.of(bytes));
+        ForkJoinTask<ParallelDeflater.Compressed> replaced = compressing.put(inZipPath, compressed);
+        removed.remove(inZipPath);
+        if (previous != null) {
+            store.release(previous);
+            release(replaced);
+        }
+        return this;
+    }
+
+    /**
+     * Удаляет файл: добавленный забывается, файл исходного архива при сохранении не записывается
+     */
+    public Zip remove(Path inZipPath) {
+        ContentStore.Content previous = changes.remove(inZipPath);
+        ForkJoinTask<ParallelDeflater.Compressed> replaced = compressing.remove(inZipPath);
+        if (previous != null) {
+            store.release(previous);
+            release(replaced);
+        }
+        if (entries.containsKey(inZipPath))
+            removed.add(inZipPath);
         return this;
     }
 
+    /**
+     * Сжатое содержимое изменённого файла, начатое при его добавлении, либо null (в том числе для файла больше 2 ГБ)
+     */
+    public ForkJoinTask<ParallelDeflater.Compressed> compressed(Path inZipPath) {
+        return compressing.get(inZipPath);
+    }
+
     public Zip updateContent(Path inZipPath, UnaryOperator<String> updateContent) {
-        String content = new String(files.get(inZipPath));
+        String content;
+        try {
+            content = new String(read(inZipPath));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
         String updatedContent = updateContent.apply(content);
-        files.put(inZipPath, updatedContent.getBytes());
+        if (!updatedContent.equals(content))
+            add(inZipPath, updatedContent.getBytes());
         return this;
     }
 
-    public void save() {
-        Path newPath = AllureUtils.update(path);
+    /**
+     * Освобождает бюджет, занятый сжатым содержимым заменённого файла
+     */
+    private void release(ForkJoinTask<ParallelDeflater.Compressed> replaced) {
+        if (replaced == null)
+            return;
         try {
-            ZipUtils.save(newPath, files, rootDir);
+            store.release(replaced.join().data); // для STORED это исходное содержимое, уже освобождённое
+        } catch (RuntimeException e) {
+            // сжатие заменённого содержимого не нужно, его ошибка не важна
+        }
+    }
+
+    /**
+     * Сохраняет архив в newPath, записанные байты учитываются в progress; возвращает записанные записи для проверки.
+     * Куда сохранять, решает вызывающий: по одному имени архив пользователя на месте не перезаписывается, см. {@link Upgrade#output()}
+     */
+    public ZipWriter.Output save(Path newPath, Progress.Counter progress) {
+        try {
+            return ZipUtils.save(newPath, this, progress);
         } catch (IOException e) {
             throw new RuntimeException("Не удалось сохранить файл " + newPath, e);
         }
     }
+
+    /**
+     * Освобождает память изменений и удаляет файл выгрузки
+     */
+    @Override
+    public void close() throws IOException {
+        changes.clear();
+        compressing.clear();
+        removed.clear();
+        store.close();
+    }
 }
@@ -0,0 +1,607 @@
+package at.allure.upgrade.core;
+
+import at.allure.upgrade.utils.ZipUtils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Оглавление zip-архива, прочитанное из central directory без распаковки содержимого.
+ * Central directory отображается в память (mmap) целиком, либо читается в кучу; записи - лёгкие объекты с числовыми
+ * полями, имена, extra и комментарии читаются прямо из отображения без копирования в массивы, имя декодируется
+ * в строку только по запросу. Поддерживается ZIP64. Для запросов по префиксу имени записи упорядочены по байтам имени.
+ */
+public class ZipIndex {
+    static final int LOC_SIG = 0x04034b50;
+    static final int CEN_SIG = 0x02014b50;
+    static final int END_SIG = 0x06054b50;
+    static final int ZIP64_END_SIG = 0x06064b50;
+    static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    static final int LOC_HEADER_SIZE = 30;
+    static final int CEN_HEADER_SIZE = 46;
+    static final int END_HEADER_SIZE = 22;
+    static final int ZIP64_END_HEADER_SIZE = 56;
+    static final int ZIP64_LOCATOR_SIZE = 20;
+    static final int ZIP64_EXTRA_ID = 0x0001;
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    static final int UTF8_FLAG = 0x800;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private static final int INSERTION_SORT_SIZE = 16;
+    /**
+     * Кодировка имён без флага UTF-8 (бит 11): -DUpdated.allure.zip.charset, по умолчанию IBM437, как в спецификации zip
+     */
+    private static final Charset LEGACY_CHARSET = legacyCharset();
+
+    public final Path path;
+    public final List<Entry> entries;
+    public final long centralDirectoryOffset;
+    public final long centralDirectorySize;
+    private final ByteBuffer cen;
+    /**
+     * Номера записей, упорядоченные по байтам имени
+     */
+    private final int[] sorted;
+
+
+    private ZipIndex(Path path, ByteBuffer cen, Entry[] entries, long centralDirectoryOffset) {
+        this.path = path;
+        this.cen = cen;
+        this.entries = Collections.unmodifiableList(Arrays.asList(entries));
+        this.centralDirectoryOffset = centralDirectoryOffset;
+        this.centralDirectorySize = cen.capacity();
+        this.sorted = sortByName(entries);
+    }
+
+    public static ZipIndex read(Path path) throws IOException {
+        return read(path, false);
+    }
+
+    /**
+     * @param detached central directory читается в кучу, а не отображается в память: файл архива
+     *                 можно заменить, пока индекс используется (Windows не даёт заменить отображённый файл)
+     */
+    public static ZipIndex read(Path path, boolean detached) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            int tailSize = (int) Math.min(fileSize, END_HEADER_SIZE + MAX_COMMENT_SIZE + ZIP64_LOCATOR_SIZE);
+            ByteBuffer tail = map(channel, fileSize - tailSize, tailSize, detached);
+
+            int endPos = -1;
+            for (int i = tailSize - END_HEADER_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == END_SIG) {
+                    endPos = i;
+                    break;
+                }
+            }
+            if (endPos == -1)
+                throw new IOException("Не найден конец central directory, файл не является zip-архивом: " + path);
+
+            long count = Short.toUnsignedInt(tail.getShort(endPos + 10));
+            long cenSize = Integer.toUnsignedLong(tail.getInt(endPos + 12));
+            long cenOffset = Integer.toUnsignedLong(tail.getInt(endPos + 16));
+            if (count == ZIP64_MAGIC_COUNT || cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC) {
+                int locatorPos = endPos - ZIP64_LOCATOR_SIZE;
+                if (locatorPos >= 0 && tail.getInt(locatorPos) == ZIP64_LOCATOR_SIG) {
+                    long zip64EndOffset = tail.getLong(locatorPos + 8);
+                    ByteBuffer zip64End = map(channel, zip64EndOffset, ZIP64_END_HEADER_SIZE, detached);
+                    if (zip64End.getInt(0) != ZIP64_END_SIG)
+                        throw new IOException("Повреждён ZIP64 конец central directory архива " + path);
+                    count = zip64End.getLong(32);
+                    cenSize = zip64End.getLong(40);
+                    cenOffset = zip64End.getLong(48);
+                }
+            }
+            if (cenOffset < 0 || cenOffset + cenSize > fileSize || cenSize > Integer.MAX_VALUE || count > Integer.MAX_VALUE)
+                throw new IOException("Повреждён central directory архива " + path);
+
+            ByteBuffer cen = map(channel, cenOffset, (int) cenSize, detached);
+            Entry[] entries = new Entry[(int) count];
+            int pos = 0;
+            for (int i = 0; i < entries.length; i++) {
+                // запись вместе с именем, extra и комментарием должна целиком лежать в central directory
+                if (pos + CEN_HEADER_SIZE > cenSize || cen.getInt(pos) != CEN_SIG || pos + recordSize(cen, pos) > cenSize)
+                    throw new IOException("Повреждена запись central directory №" + i + " архива " + path);
+                entries[i] = new Entry(cen, pos);
+                pos += entries[i].recordSize();
+            }
+            return new ZipIndex(path, cen, entries, cenOffset);
+        }
+    }
+
+    /**
+     * Длина записи central directory с позиции pos по её полям длин имени, extra и комментария
+     */
+    private static long recordSize(ByteBuffer cen, int pos) {
+        return (long) CEN_HEADER_SIZE + Short.toUnsignedInt(cen.getShort(pos + 28))
+                + Short.toUnsignedInt(cen.getShort(pos + 30)) + Short.toUnsignedInt(cen.getShort(pos + 32));
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, int size, boolean detached) throws IOException {
+        ByteBuffer buffer = detached ? readFully(channel, position, size) : channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Номера записей в порядке байтов имени: сортировка слиянием массива int без упаковки номеров в объекты
+     */
+    private int[] sortByName(Entry[] entries) {
+        int[] order = new int[entries.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        mergeSort(entries, order, order.clone(), 0, order.length);
+        return order;
+    }
+
+    /**
+     * Сортирует order[from, to), используя buffer[from, to) с теми же значениями как вспомогательный массив
+     */
+    private void mergeSort(Entry[] entries, int[] order, int[] buffer, int from, int to) {
+        if (to - from <= INSERTION_SORT_SIZE) {
+            for (int i = from + 1; i < to; i++) {
+                int index = order[i];
+                int j = i;
+                for (; j > from && compareNames(entries[order[j - 1]], entries[index]) > 0; j--)
+                    order[j] = order[j - 1];
+                order[j] = index;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        // половины сортируются в buffer и сливаются в order
+        mergeSort(entries, buffer, order, from, mid);
+        mergeSort(entries, buffer, order, mid, to);
+        if (compareNames(entries[buffer[mid - 1]], entries[buffer[mid]]) <= 0) {
+            System.arraycopy(buffer, from, order, from, to - from);
+            return;
+        }
+        for (int i = from, left = from, right = mid; i < to; i++) {
+            if (right >= to || left < mid && compareNames(entries[buffer[left]], entries[buffer[right]]) <= 0)
+                order[i] = buffer[left++];
+            else
+                order[i] = buffer[right++];
+        }
+    }
+
+    private int compareNames(Entry a, Entry b) {
+        int length = Math.min(a.nameLength, b.nameLength);
+        int aPos = a.cenPos + CEN_HEADER_SIZE;
+        int bPos = b.cenPos + CEN_HEADER_SIZE;
+        for (int i = 0; i < length; i++) {
+            int diff = Byte.toUnsignedInt(cen.get(aPos + i)) - Byte.toUnsignedInt(cen.get(bPos + i));
+            if (diff != 0)
+                return diff;
+        }
+        return a.nameLength - b.nameLength;
+    }
+
+    /**
+     * Сравнивает начало имени записи с префиксом: 0 - имя начинается с префикса
+     */
+    private int comparePrefix(Entry entry, byte[] prefix) {
+        int length = Math.min(entry.nameLength, prefix.length);
+        int pos = entry.cenPos + CEN_HEADER_SIZE;
+        for (int i = 0; i < length; i++) {
+            int diff = Byte.toUnsignedInt(cen.get(pos + i)) - Byte.toUnsignedInt(prefix[i]);
+            if (diff != 0)
+                return diff;
+        }
+        return entry.nameLength < prefix.length ? -1 : 0;
+    }
+
+    /**
+     * Записи, имя которых начинается с prefix, в порядке имён. Двоичный поиск по упорядоченным записям.
+     */
+    public List<Entry> withPrefix(String prefix) {
+        byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (comparePrefix(entries.get(sorted[mid]), bytes) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        List<Entry> result = new ArrayList<>();
+        for (int i = low; i < sorted.length; i++) {
+            Entry entry = entries.get(sorted[i]);
+            if (comparePrefix(entry, bytes) != 0)
+                break;
+            result.add(entry);
+        }
+        return result;
+    }
+
+    /**
+     * SHA-256 сырых байтов central directory: имена, размеры, CRC и атрибуты всех записей
+     */
+    public byte[] centralDirectoryDigest() {
+        MessageDigest digest = sha256();
+        digest.update(cen.duplicate());
+        return digest.digest();
+    }
+
+    /**
+     * Смещение сжатых данных записи: сразу за её локальным заголовком
+     */
+    static long dataOffset(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer loc = readFully(channel, entry.localHeaderOffset, LOC_HEADER_SIZE);
+        if (loc.getInt(0) != LOC_SIG)
+            throw new IOException("Повреждён локальный заголовок записи " + entry.name());
+        int nameLength = Short.toUnsignedInt(loc.getShort(26));
+        int extraLength = Short.toUnsignedInt(loc.getShort(28));
+        return entry.localHeaderOffset + LOC_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * Считывает и распаковывает содержимое одной записи
+     */
+    static byte[] readContent(FileChannel channel, Entry entry) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            return readContent(channel, entry, inflater);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Считывает и распаковывает содержимое одной записи переданным Inflater (nowrap), который можно
+     * переиспользовать: перед распаковкой он сбрасывается. Канал читается по позиции, поэтому один канал
+     * можно читать из нескольких потоков.
+     */
+    static byte[] readContent(FileChannel channel, Entry entry, Inflater inflater) throws IOException {
+        if (!fitsInMemory(entry))
+            throw new IOException("Запись " + entry.name() + " слишком велика для чтения в память, она читается только потоком");
+        byte[] data = readFully(channel, dataOffset(channel, entry), (int) entry.compressedSize).array();
+        if (entry.method == ZipEntry.STORED)
+            return data;
+        if (entry.method != ZipEntry.DEFLATED)
+            throw new IOException("Неподдерживаемый метод сжатия " + entry.method + " у записи " + entry.name());
+
+        inflater.reset();
+        try {
+            inflater.setInput(data);
+            byte[] content = new byte[(int) entry.size];
+            int length = 0;
+            while (length < content.length && !inflater.finished()) {
+                int inflated = inflater.inflate(content, length, content.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Повреждены сжатые данные записи " + entry.name());
+                length += inflated;
+            }
+            if (length != content.length)
+                throw new IOException("Размер записи " + entry.name() + " не совпадает с central directory");
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException("Повреждены сжатые данные записи " + entry.name(), e);
+        }
+    }
+
+    /**
+     * Содержимое записи архива как {@link ByteSource}: размер и CRC-32 берутся из central directory,
+     * несжатая запись передаётся в канал из файла архива средствами ОС
+     */
+    static ByteSource source(Path archive, Entry entry) {
+        return new EntrySource(archive, entry);
+    }
+
+    /**
+     * Поток распакованного содержимого записи любого размера. Канал читается по позиции и не закрывается
+     * вместе с потоком, поэтому один канал можно одновременно читать несколькими потоками.
+     */
+    static InputStream open(FileChannel channel, Entry entry) throws IOException {
+        if (entry.method != ZipEntry.STORED && entry.method != ZipEntry.DEFLATED)
+            throw new IOException("Неподдерживаемый метод сжатия " + entry.method + " у записи " + entry.name());
+        InputStream data = new RegionInputStream(channel, dataOffset(channel, entry), entry.compressedSize);
+        if (entry.method == ZipEntry.STORED)
+            return data;
+        Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(data, inflater, 64 * 1024) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end(); // собственный Inflater поток не освобождает
+                }
+            }
+        };
+    }
+
+    /**
+     * Запись помещается в массив: её можно прочитать целиком, а не только потоком
+     */
+    public static boolean fitsInMemory(Entry entry) {
+        return entry.size <= MAX_ARRAY_SIZE && entry.compressedSize <= MAX_ARRAY_SIZE;
+    }
+
+    /**
+     * Имя записи по её байтам: UTF-8, если установлен бит 11 флагов, иначе кодировка старых архивов (IBM437)
+     */
+    static String decodeName(ByteBuffer rawName, int flags) {
+        Charset charset = (flags & UTF8_FLAG) != 0 ? StandardCharsets.UTF_8 : LEGACY_CHARSET;
+        return charset.decode(rawName.duplicate()).toString();
+    }
+
+    private static Charset legacyCharset() {
+        String name = System.getProperty("Updated.allure.zip.charset", "IBM437");
+        try {
+            return Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+            return Charset.defaultCharset();
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Неожиданный конец файла");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+
+    private static final class EntrySource implements ByteSource {
+        private final Path archive;
+        private final Entry entry;
+
+        EntrySource(Path archive, Entry entry) {
+            this.archive = archive;
+            this.entry = entry;
+        }
+
+        @Override
+        public long size() {
+            return entry.size;
+        }
+
+        @Override
+        public long crc() {
+            return entry.crc;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ);
+            try {
+                return new FilterInputStream(ZipIndex.open(channel, entry)) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            channel.close();
+                        }
+                    }
+                };
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            if (entry.method != ZipEntry.STORED)
+                return ByteSource.super.transferTo(target);
+            try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+                return ZipUtils.transfer(channel, dataOffset(channel, entry), entry.size, target);
+            }
+        }
+
+        @Override
+        public byte[] readAll() throws IOException {
+            try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+                return readContent(channel, entry);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return archive + "!/" + entry.name();
+        }
+    }
+
+
+    /**
+     * Участок файла, читаемый по позиции: позиция канала не меняется, канал не закрывается
+     */
+    static final class RegionInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        RegionInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : Byte.toUnsignedInt(b[0]);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (remaining <= 0)
+                return -1;
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (n < 0)
+                throw new IOException("Неожиданный конец файла");
+            position += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, remaining));
+            position += skipped;
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+    }
+
+
+    /**
+     * Запись central directory. Хранит только числовые поля и позицию записи в отображении,
+     * имя, extra и комментарий отдаются срезами отображения.
+     */
+    public static class Entry {
+        final int versionMadeBy;
+        final int versionNeeded;
+        final int flags;
+        public final int method;
+        final int dosTime;
+        public final long crc;
+        public final long compressedSize;
+        public final long size;
+        final int internalAttributes;
+        final long externalAttributes;
+        final long localHeaderOffset;
+        final int cenPos;
+        final int nameLength;
+        final int extraLength;
+        final int commentLength;
+        private final ByteBuffer cen;
+
+        private Entry(ByteBuffer cen, int pos) throws IOException {
+            this.cen = cen;
+            cenPos = pos;
+            versionMadeBy = Short.toUnsignedInt(cen.getShort(pos + 4));
+            versionNeeded = Short.toUnsignedInt(cen.getShort(pos + 6));
+            flags = Short.toUnsignedInt(cen.getShort(pos + 8));
+            method = Short.toUnsignedInt(cen.getShort(pos + 10));
+            dosTime = cen.getInt(pos + 12);
+            crc = Integer.toUnsignedLong(cen.getInt(pos + 16));
+            long compressedSize = Integer.toUnsignedLong(cen.getInt(pos + 20));
+            long size = Integer.toUnsignedLong(cen.getInt(pos + 24));
+            nameLength = Short.toUnsignedInt(cen.getShort(pos + 28));
+            extraLength = Short.toUnsignedInt(cen.getShort(pos + 30));
+            commentLength = Short.toUnsignedInt(cen.getShort(pos + 32));
+            internalAttributes = Short.toUnsignedInt(cen.getShort(pos + 36));
+            externalAttributes = Integer.toUnsignedLong(cen.getInt(pos + 38));
+            long localHeaderOffset = Integer.toUnsignedLong(cen.getInt(pos + 42));
+
+            // ZIP64: настоящие значения полей, равных 0xFFFFFFFF, лежат в extra с id 0x0001
+            if (size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC) {
+                int extraPos = pos + CEN_HEADER_SIZE + nameLength;
+                int extraEnd = extraPos + extraLength;
+                while (extraPos + 4 <= extraEnd) {
+                    int id = Short.toUnsignedInt(cen.getShort(extraPos));
+                    int length = Short.toUnsignedInt(cen.getShort(extraPos + 2));
+                    if (id == ZIP64_EXTRA_ID) {
+                        int field = extraPos + 4;
+                        int fieldEnd = Math.min(field + length, extraEnd);
+                        if (size == ZIP64_MAGIC && field + 8 <= fieldEnd) {
+                            size = cen.getLong(field);
+                            field += 8;
+                        }
+                        if (compressedSize == ZIP64_MAGIC && field + 8 <= fieldEnd) {
+                            compressedSize = cen.getLong(field);
+                            field += 8;
+                        }
+                        if (localHeaderOffset == ZIP64_MAGIC && field + 8 <= fieldEnd) {
+                            localHeaderOffset = cen.getLong(field);
+                        }
+                        break;
+                    }
+                    extraPos += 4 + length;
+                }
+                if (size < 0 || compressedSize < 0 || localHeaderOffset < 0)
+                    throw new IOException("Повреждены ZIP64 поля записи " + name());
+            }
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        int recordSize() {
+            return CEN_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        /**
+         * Имя записи; каждый вызов декодирует его из central directory заново
+         */
+        public String name() {
+            return decodeName(rawName(), flags);
+        }
+
+        /**
+         * Байты имени в том виде, как они записаны в архиве
+         */
+        ByteBuffer rawName() {
+            return slice(cen, cenPos + CEN_HEADER_SIZE, nameLength);
+        }
+
+        ByteBuffer extra() {
+            return slice(cen, cenPos + CEN_HEADER_SIZE + nameLength, extraLength);
+        }
+
+        ByteBuffer comment() {
+            return slice(cen, cenPos + CEN_HEADER_SIZE + nameLength + extraLength, commentLength);
+        }
+
+        private static ByteBuffer slice(ByteBuffer buffer, int pos, int length) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(pos + length).position(pos);
+            return slice.slice();
+        }
+
+        public boolean isDirectory() {
+            return nameLength > 0 && cen.get(cenPos + CEN_HEADER_SIZE + nameLength - 1) == '/';
+        }
+
+        @Override
+        public String toString() {
+            return "ZipIndex.Entry{" +
+                    "name='" + name() + '\'' +
+                    ", size=" + size +
+                    ", compressedSize=" + compressedSize +
+                    ", crc=" + Long.toHexString(crc) +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package at.allure.upgrade.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Inflater;
+
+/**
+ * Полное чтение содержимого записей архива, когда нужны все байты: повторное сжатие, проверка CRC-32
+ * содержимого. Записи распаковываются независимо друг от друга по central directory, параллельно в пуле
+ * fork-join; у каждого потока пула свой переиспользуемый Inflater, все читают один канал по позиции.
+ * Одновременно в памяти не больше budget байт сжатых и распакованных данных: следующая запись
+ * начинает читаться, только когда потребитель принял предыдущие.
+ */
+public class ZipLoader {
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final ForkJoinPool pool;
+    private final long budget;
+
+
+    public ZipLoader() {
+        this(ForkJoinPool.commonPool(), Long.getLong("Updated.allure.load.budget", 64L * 1024 * 1024));
+    }
+
+    /**
+     * @param budget сколько байт сжатых и распакованных данных могут одновременно находиться в обработке
+     */
+    public ZipLoader(ForkJoinPool pool, long budget) {
+        this.pool = pool;
+        this.budget = budget;
+    }
+
+    /**
+     * Распаковывает записи и передаёт их содержимое потребителю в потоке, вызвавшем метод.
+     * Каталоги пропускаются; записи, не помещающиеся в массив ({@link ZipIndex#fitsInMemory}), читаются только потоком.
+     *
+     * @param ordered true - в порядке entries, false - по мере готовности
+     */
+    public void load(Zip zip, Collection<ZipIndex.Entry> entries, boolean ordered, Consumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(zip.path, StandardOpenOption.READ)) {
+            new Session(channel, ordered).run(entries, consumer);
+        }
+    }
+
+    /**
+     * Содержимое одной записи, распакованное Inflater текущего потока; канал читается по позиции
+     */
+    public static byte[] read(FileChannel channel, ZipIndex.Entry entry) throws IOException {
+        return ZipIndex.readContent(channel, entry, INFLATERS.get());
+    }
+
+    /**
+     * Сколько бюджета занимает запись; запись больше бюджета занимает его целиком и читается одна
+     */
+    private long cost(ZipIndex.Entry entry) {
+        return Math.min(budget, entry.compressedSize + entry.size);
+    }
+
+
+    public interface Consumer {
+        void accept(ZipIndex.Entry entry, byte[] content) throws IOException;
+    }
+
+
+    /**
+     * Одно чтение: бюджет занимается и освобождается только вызывающим потоком, поэтому без синхронизации
+     */
+    private class Session {
+        private final FileChannel channel;
+        private final boolean ordered;
+        /**
+         * Запущенные и ещё не принятые записи в порядке запуска
+         */
+        private final Deque<Future<Loaded>> running = new ArrayDeque<>();
+        private final CompletionService<Loaded> completed;
+        private long used;
+
+        Session(FileChannel channel, boolean ordered) {
+            this.channel = channel;
+            this.ordered = ordered;
+            this.completed = ordered ? null : new ExecutorCompletionService<>(pool);
+        }
+
+        void run(Collection<ZipIndex.Entry> entries, Consumer consumer) throws IOException {
+            try {
+                for (ZipIndex.Entry entry : entries) {
+                    if (entry.isDirectory())
+                        continue;
+                    long cost = cost(entry);
+                    while (!running.isEmpty() && used + cost > budget)
+                        accept(consumer);
+                    used += cost;
+                    running.add(ordered ? pool.submit(() -> load(entry)) : completed.submit(() -> load(entry)));
+                }
+                while (!running.isEmpty())
+                    accept(consumer);
+            } finally {
+                cancel();
+            }
+        }
+
+        private Loaded load(ZipIndex.Entry entry) {
+            try {
+                return new Loaded(entry, read(channel, entry));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Дожидается следующей записи и передаёт её потребителю
+         */
+        private void accept(Consumer consumer) throws IOException {
+            Loaded loaded;
+            try {
+                Future<Loaded> next = ordered ? running.poll() : completed.take();
+                if (!ordered)
+                    running.remove(next);
+                loaded = next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Чтение архива прервано", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException)
+                    throw ((UncheckedIOException) cause).getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new IOException(cause);
+            }
+            try {
+                consumer.accept(loaded.entry, loaded.content);
+            } finally {
+                used -= cost(loaded.entry);
+            }
+        }
+
+        /**
+         * После ошибки оставшиеся записи не нужны; уже читающие канал задачи доработают до закрытия канала
+         */
+        private void cancel() {
+            for (Future<Loaded> future : running)
+                future.cancel(false);
+            running.clear();
+        }
+    }
+
+
+    private static class Loaded {
+        final ZipIndex.Entry entry;
+        final byte[] content;
+
+        Loaded(ZipIndex.Entry entry, byte[] content) {
+            this.entry = entry;
+            this.content = content;
+        }
+    }
+}
@@ -1,26 +1,38 @@
 package at.allure.upgrade.core;
 
-import at.allure.upgrade.utils.AllureUtils;
-import at.allure.upgrade.utils.ListUtils;
-import at.allure.upgrade.utils.PluginFileUtils;
-
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class ZipProcessorWindow extends JFrame {
-    private static final Path ALLURE_CONFIG = Paths.get("config", "allure.yml");
-    private static final String PLUGIN_ROW = "  - resultiks-plugin";
+    /**
+     * Участок полосы прогресса каждого этапа, внутри которого она движется по обработанным байтам.
+     * Запись архива и проверки занимают большую часть времени, поэтому и большую часть полосы.
+     */
+    private static final Map<String, int[]> STAGE_PROGRESS = new HashMap<>();
+
+    static {
+        STAGE_PROGRESS.put("read", new int[]{0, 10});
+        STAGE_PROGRESS.put("add", new int[]{15, 30});
+        STAGE_PROGRESS.put("manifest", new int[]{35, 50});
+        STAGE_PROGRESS.put("save", new int[]{50, 85});
+        STAGE_PROGRESS.put("verify-content", new int[]{85, 92});
+        STAGE_PROGRESS.put("verify-manifest", new int[]{92, 99});
+        // tar.gz
+        STAGE_PROGRESS.put("stream", new int[]{0, 90});
+        STAGE_PROGRESS.put("verify", new int[]{90, 99});
+    }
 
     private JProgressBar progressBar;
     private JLabel statusLabel;
@@ -29,11 +41,31 @@ public class ZipProcessorWindow extends JFrame {
     private File selectedFile;
     private JTextArea consoleArea;
     private JScrollPane consoleScroll;
-    private Path pluginDirPath;
+    /**
+     * Папки и zip-архивы плагинов, пустой список - встроенные ресурсы
+     */
+    private List<Path> pluginDirPaths = new ArrayList<>();
     private JLabel pluginDirLabel;
     private JButton selectPluginDirButton;
 
+    /**
+     * Показывает окно в системном оформлении; вызывается только без аргументов командной строки,
+     * чтобы консольный режим не загружал AWT и Swing
+     */
+    public static void open() {
+        SwingUtilities.invokeLater(() -> {
+            try {
+                UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            new ZipProcessorWindow().setVisible(true);
+        });
+    }
+
     public ZipProcessorWindow() {
+        UpgradeMetrics.measureAllocations(); // память по этапам выводится в окне
         init();
     }
 
@@ -79,9 +111,7 @@ public class ZipProcessorWindow extends JFrame {
         consoleScroll.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
 
         // Label и кнопка для выбора директории плагина
-        pluginDirLabel = new JLabel("<html>Папка плагина:<br>" +
-            (pluginDirPath != null ? pluginDirPath : "Встроенные ресурсы (jar)") +
-            "</html>");
+        pluginDirLabel = new JLabel(pluginDirText());
         selectPluginDirButton = new JButton("Выбрать папку плагина");
     }
 
@@ -120,7 +150,7 @@ public class ZipProcessorWindow extends JFrame {
 
     private void selectZipFile() {
         JFileChooser fileChooser = new JFileChooser();
-        fileChooser.setFileFilter(new FileNameExtensionFilter("ZIP архивы", "zip"));
+        fileChooser.setFileFilter(new FileNameExtensionFilter("Архивы Allure (zip, tgz, tar.gz)", "zip", "tgz", "gz"));
         fileChooser.setAcceptAllFileFilterUsed(false);
 
         int result = fileChooser.showOpenDialog(this);
@@ -135,31 +165,39 @@ public class ZipProcessorWindow extends JFrame {
 
     private void selectPluginDirectory() {
         JFileChooser dirChooser = new JFileChooser();
-        dirChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        // можно выбрать несколько папок и zip-архивов плагинов, все они добавятся за один проход
+        dirChooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+        dirChooser.setMultiSelectionEnabled(true);
+        dirChooser.setFileFilter(new FileNameExtensionFilter("Папки и zip-архивы плагинов", "zip"));
         dirChooser.setAcceptAllFileFilterUsed(false);
         int result = dirChooser.showOpenDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
-            pluginDirPath = dirChooser.getSelectedFile().toPath();
-            pluginDirLabel.setText("<html>Папка плагина:<br>" + pluginDirPath + "</html>");
+            pluginDirPaths = new ArrayList<>();
+            for (File file : dirChooser.getSelectedFiles())
+                pluginDirPaths.add(file.toPath());
+            pluginDirLabel.setText(pluginDirText());
         }
     }
 
+    private String pluginDirText() {
+        if (pluginDirPaths.isEmpty())
+            return "<html>Папка плагина:<br>Встроенные ресурсы (jar)</html>";
+        List<String> paths = new ArrayList<>();
+        for (Path path : pluginDirPaths)
+            paths.add(path.toString());
+        return "<html>" + (paths.size() == 1 ? "Папка плагина:" : "Папки плагинов:") + "<br>" + String.join("<br>", paths) + "</html>";
+    }
+
     /**
-     * Валидация папки плагина: должен быть allure-plugin.yml с id: resultiks
+     * Валидация плагинов: у каждого должен быть allure-plugin.yml с id, id не должны повторяться
      */
-    private List<PluginFile> getAndValidatePluginDir() {
-        List<PluginFile> files;
+    private PluginFileSet getAndValidatePluginDir() {
+        PluginFileSet files;
         try {
-            files = pluginDirPath != null 
-                    ? PluginFileUtils.fromDirectory(pluginDirPath)
-                    : PluginFileUtils.fromResources();
+            files = PluginFileSet.load(pluginDirPaths);
         } catch (Exception e) {
-            handleError("Ошибка при получении файлов плагина: " + e.getMessage());
-            return Collections.emptyList();
-        }
-
-        if (!validatePluginFiles(files)) {
-            return Collections.emptyList();
+            handleError(e.getMessage());
+            return null;
         }
 
         selectFileButton.setEnabled(true);
@@ -176,27 +214,6 @@ public class ZipProcessorWindow extends JFrame {
         printError(error);
     }
 
-    /**
-     * Валидация файлов плагина
-     */
-    private boolean validatePluginFiles(List<PluginFile> files) {
-        PluginFile pluginYml = files.stream()
-                .filter(PluginFile::isPluginYml)
-                .findFirst()
-                .orElse(null);
-        if (pluginYml == null) {
-            handleError("В папке плагина не найден allure-plugin.yml");
-            return false;
-        }
-
-        if (!pluginYml.hasPluginId()) {
-            handleError("В allure-plugin.yml не найдено 'id: resultiks'");
-            return false;
-        }
-
-        return true;
-    }
-
     /**
      * Устанавливает ошибку в statusLabel с выделением красным цветом
      */
@@ -231,162 +248,146 @@ public class ZipProcessorWindow extends JFrame {
 
         // Используем SwingWorker для выполнения в фоновом потоке
         SwingWorker<Void, Integer> worker = new SwingWorker<Void, Integer>() {
-            private Zip zip;
+            private Upgrade upgrade;
             private String errorMessage = null;
+            /**
+             * Последнее состояние этапа для строки статуса: байты, скорость и оставшееся время
+             */
+            private volatile Progress.Update lastUpdate;
+            private final UpgradeMetrics pluginMetrics = new UpgradeMetrics("plugin");
 
             @Override
             protected Void doInBackground() {
-                List<PluginFile> pluginFiles = getPluginFiles();
-                if (pluginFiles.isEmpty()) return null;
+                try {
+                    upgradeArchive();
+                } finally {
+                    if (upgrade != null)
+                        upgrade.close();
+                    reportMetrics();
+                }
+                return null;
+            }
 
-                if (!initializeZipFile()) return null;
-                if (!validateAllureZip()) return null;
-                if (!addPluginFiles(pluginFiles)) return null;
-                if (!updateConfigFile()) return null;
-                if (!saveZipFile()) return null;
-                if (!verifyChanges(pluginFiles)) return null;
+            private void upgradeArchive() {
+                // файлы плагина загружаются параллельно с чтением архива
+                CompletableFuture<PluginFileSet> loading = CompletableFuture.supplyAsync(this::getPluginFiles);
+                upgrade = new Upgrade(selectedFile.toPath(), loading, ZipProcessorWindow.this::print);
+                // обновления приходят не чаще интервала Progress, publish дополнительно объединяет их до отрисовки
+                upgrade.setProgress(new Progress(this::onProgress));
+                if (upgrade.isTarGz()) {
+                    if (loading.join() == null) return;
+                    // tar.gz обрабатывается за один проход, этапы не разделяются
+                    if (!stage(99, () -> upgrade.run())) return;
+                    setTitle(getTitle() + "  " + upgrade.getAllureVersion());
+                    publish(100);
+                    return;
+                }
+                boolean opened = initializeZipFile();
+                PluginFileSet pluginFiles = loading.join();
+                if (pluginFiles == null || !opened) return;
+                if (!validateAllureZip()) return;
+                if (!addPluginFiles()) return;
+                if (!updateConfigFile()) return;
+                if (!saveZipFile()) return;
+                if (!verifyChanges()) return;
 
                 publish(100);
-                return null;
             }
 
-            private List<PluginFile> getPluginFiles() {
-                print("Проверка файлов плагина в " + (pluginDirPath == null ? "составе jar" : pluginDirPath) + "...");
-                List<PluginFile> pluginFiles = getAndValidatePluginDir();
-                if (pluginFiles.isEmpty()) {
+            private PluginFileSet getPluginFiles() {
+                print("Проверка файлов плагина в " + (pluginDirPaths.isEmpty() ? "составе jar" : pluginDirPaths) + "...");
+                PluginFileSet pluginFiles;
+                try (UpgradeMetrics.Stage stage = pluginMetrics.start("plugin-load")) {
+                    pluginFiles = getAndValidatePluginDir();
+                    if (pluginFiles != null) {
+                        stage.read(pluginFiles.totalSize()).entries(pluginFiles.size());
+                        stage.done();
+                    }
+                }
+                if (pluginFiles == null) {
                     publish(-1);
                     return pluginFiles;
                 }
-                print("Файлы плагина проверены");
-                publish(5);
+                print("Файлы плагина проверены: " + pluginFiles);
                 return pluginFiles;
             }
 
             private boolean initializeZipFile() {
-                print("Начало обработки файла " + selectedFile.getAbsolutePath() + "...");
-                try {
-                    zip = new Zip(selectedFile.toPath());
-                    print("Файл успешно считан и распознан как архив");
-                    publish(10);
-                    return true;
-                } catch (Exception e) {
-                    errorMessage = "Не удалось открыть архив, " + e.getMessage();
-                    publish(-1);
-                    return false;
-                }
+                return stage(10, () -> upgrade.open());
             }
 
             private boolean validateAllureZip() {
-                if (AllureUtils.isAllureZip(zip)) {
-                    publish(20);
-                    String allureVersion = AllureUtils.parseAllureVersion(zip);
+                return stage(15, () -> {
+                    String allureVersion = upgrade.validateAllure();
                     setTitle(getTitle() + "  " + allureVersion);
-                    print("В архиве найден Allure " + allureVersion + ", начинается модификация...");
-                    publish(30);
-                    return true;
-                } else {
-                    errorMessage = "Выбранный архив не содержит Allure";
-                    publish(-1);
-                    return false;
-                }
+                });
             }
 
-            private boolean addPluginFiles(List<PluginFile> pluginFiles) {
-                try {
-                    publish(35);
-                    int totalFiles = pluginFiles.size();
-                    if (totalFiles == 0) {
-                        throw new RuntimeException("В папке плагина нет файлов для добавления.");
-                    }
-                    int startProgress = 35;
-                    int endProgress = 75;
-                    int progressRange = endProgress - startProgress;
-                    int fileIndex = 0;
-                    for (PluginFile pf : pluginFiles) {
-                        print("Добавление файла: " + pf.inZipPath);
-                        zip.add(pf.inZipPath, pf.getBytes());
-                        int progress = startProgress + (int)(((double)++fileIndex / totalFiles) * progressRange);
-                        publish(progress);
-                    }
-                    print("Плагин успешно добавлен (файлов: " + totalFiles + ")");
-                    return true;
-                } catch (Exception e) {
-                    errorMessage = "Ошибка при добавлении плагина: " + e.getMessage();
-                    publish(-1);
-                    return false;
-                }
+            private boolean addPluginFiles() {
+                return stage(30, () -> upgrade.addPluginFiles());
             }
 
             private boolean updateConfigFile() {
-                print("Обновление конфигурационного файла " + ALLURE_CONFIG + "...");
-                try {
-                    zip.updateContent(
-                        ALLURE_CONFIG,
-                        content -> {
-                            if (content.contains(PLUGIN_ROW)) {
-                                return content;
-                            }
-                            int firstLineEnd = content.indexOf('\n');
-                            if (firstLineEnd == -1) {
-                                return content + "\n" + PLUGIN_ROW;
-                            }
-                            return content.substring(0, firstLineEnd + 1) + PLUGIN_ROW + "\n" + content.substring(firstLineEnd + 1);
-                        }
-                    );
-                    print("Конфиг успешно обновлён");
-                    publish(85);
-                    return true;
-                } catch (Exception e) {
-                    errorMessage = "Ошибка при обновлении конфига: " + e.getMessage();
-                    publish(-1);
-                    return false;
-                }
+                return stage(35, () -> upgrade.updateConfig());
             }
 
             private boolean saveZipFile() {
-                print("Сохранение архива...");
+                return stage(85, () -> upgrade.save());
+            }
+
+            /**
+             * Переводит байты этапа в положение полосы внутри участка этапа, см. {@link #STAGE_PROGRESS}
+             */
+            private void onProgress(Progress.Update update) {
+                lastUpdate = update;
+                int[] range = STAGE_PROGRESS.get(update.stage);
+                if (range != null)
+                    publish(range[0] + (int) ((range[1] - range[0]) * update.fraction()));
+            }
+
+            private boolean verifyChanges() {
                 try {
-                    zip.save();
-                    print("Архив успешно сохранён!");
-                    publish(95);
-                    return true;
+                    List<String> mismatches = upgrade.verify();
+                    if (mismatches.isEmpty())
+                        return true;
+                    errorMessage = mismatches.get(0);
                 } catch (Exception e) {
-                    errorMessage = "Ошибка при сохранении архива: " + e.getMessage();
-                    publish(-1);
-                    return false;
+                    errorMessage = e.getMessage();
                 }
+                publish(-1);
+                return false;
             }
 
-            private boolean verifyChanges(List<PluginFile> pluginFiles) {
-                print("Проверка изменений в архиве...");
+            /**
+             * Выводит время и объёмы по этапам и пишет отчёт JSON, если задан -DUpdated.allure.metrics
+             */
+            private void reportMetrics() {
+                List<UpgradeMetrics> runs = new ArrayList<>();
+                runs.add(pluginMetrics);
+                if (upgrade != null)
+                    runs.add(upgrade.metrics);
+                runs.forEach(metrics -> metrics.summary().forEach(line -> print("Этап " + line)));
+                Path report = UpgradeMetrics.reportPath();
+                if (report == null)
+                    return;
                 try {
-                    Zip zipBefore = new Zip(zip.path);
-                    Set<Path> initialFiles = zipBefore.files.keySet();
-                    Set<Path> pluginFileNames = pluginFiles.stream().map(pf -> pf.inZipPath).collect(Collectors.toSet());
-                    Zip zipAfter = new Zip(AllureUtils.update(zip.path));
-                    Set<Path> resultFiles = zipAfter.files.keySet();
-
-                    boolean allPluginFilesPresent = pluginFileNames.stream().allMatch(resultFiles::remove);
-                    boolean onlyPluginFilesAdded = initialFiles.equals(resultFiles);
-
-                    if (allPluginFilesPresent && onlyPluginFilesAdded) {
-                        print("Проверка успешна: файлы плагина добавлены в архив.");
-                        return true;
-                    }
+                    UpgradeMetrics.writeReport(report, runs);
+                    print("Отчёт по этапам: " + report.toAbsolutePath());
+                } catch (IOException e) {
+                    printError("не удалось записать отчёт по этапам: " + e.getMessage());
+                }
+            }
 
-                    print("Внимание: не все файлы плагина найдены в архиве или список файлов не изменился!");
-                    if (!allPluginFilesPresent) {
-                        errorMessage = "Отсутствуют файлы плагина: " +
-                                pluginFileNames.stream().filter(f -> !resultFiles.contains(f)).map(Path::toString).collect(Collectors.joining(", "));
-                        publish(-1);
-                    }
-                    if (!onlyPluginFilesAdded) {
-                        errorMessage = ListUtils.diff(initialFiles, "before", resultFiles, "after");
-                        publish(-1);
-                    }
-                    return false;
+            /**
+             * Выполняет этап модификации, при успехе публикует progress, при ошибке - сообщение об ошибке
+             */
+            private boolean stage(int progress, Runnable action) {
+                try {
+                    action.run();
+                    publish(progress);
+                    return true;
                 } catch (Exception e) {
-                    errorMessage = "Ошибка при проверке изменений архива: " + e.getMessage();
+                    errorMessage = e.getMessage();
                     publish(-1);
                     return false;
                 }
@@ -402,17 +403,13 @@ public class ZipProcessorWindow extends JFrame {
                         selectFileButton.setVisible(true);
                         printError(errorMessage != null ? errorMessage : "Выбран неподходящий файл");
                         return;
-                    } else if (progress == 10) {
-                        statusLabel.setText("Файл получен");
-                        progressBar.setValue(progress);
-                    } else if (progress <= 90) {
-                        statusLabel.setText("Обработка файла...");
-                        progressBar.setValue(progress);
-                    } else {
-                        statusLabel.setText("Создание архива...");
-                        progressBar.setValue(progress);
                     }
+                    // обновления потоков пула могут прийти позже завершения этапа, полоса не движется назад
+                    progressBar.setValue(Math.max(progressBar.getValue(), progress));
                 }
+                Progress.Update update = lastUpdate;
+                if (update != null && progressBar.getValue() < 100)
+                    statusLabel.setText(update.toString());
             }
 
             @Override
@@ -422,9 +419,10 @@ public class ZipProcessorWindow extends JFrame {
                     if (progressBar.getValue() == 100) {
                         // Успешное завершение
                         progressBar.setVisible(false);
-                        statusLabel.setText("Создан файл: " + AllureUtils.update(zip.path).getFileName());
+                        String result = upgrade.isUpToDate() ? "Архив уже актуален: " : "Создан файл: ";
+                        statusLabel.setText(result + upgrade.output().getFileName());
                         successIcon.setVisible(true);
-                        print("Создан файл: " + AllureUtils.update(zip.path));
+                        print(result + upgrade.output());
                         print("Обработка завершена успешно!");
                     }
                 } catch (Exception ex) {
@@ -0,0 +1,214 @@
+package at.allure.upgrade.core;
+
+import at.allure.upgrade.utils.ListUtils;
+import at.allure.upgrade.utils.ZipUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Проверка результата модификации: сравниваются имена, размеры и CRC-32 записей исходного архива
+ * с записями нового - из его central directory, либо из того, что было записано при сохранении; записанное
+ * при сохранении сверяется с central directory, заново прочитанным из созданного файла. Побайтная проверка - по манифестам SHA-256 исходного архива, набора плагинов и нового архива.
+ */
+public abstract class ZipVerifier {
+
+    /**
+     * Возвращает список найденных расхождений, пустой список - проверка пройдена
+     *
+     * @param source         исходный архив
+     * @param output         созданный архив
+     * @param pluginFiles    файлы, которые должны быть добавлены
+     * @param allowedChanges файлы исходного архива, содержимое которых может отличаться;
+     *                       удалённые из source файлы ({@link Zip#removed()}) в новом архиве быть не должны
+     */
+    public static List<String> verify(Zip source, Zip output, List<PluginFile> pluginFiles, Set<Path> allowedChanges) throws IOException {
+        Map<Path, Summary> result = new LinkedHashMap<>();
+        output.entries.forEach((path, entry) -> result.put(path, new Summary(entry.size, entry.crc)));
+        return verify(source, result, pluginFiles, allowedChanges);
+    }
+
+    /**
+     * Проверка по записям, собранным при сохранении архива, без повторного чтения созданного файла
+     *
+     * @param output записи созданного архива по пути без rootDir
+     */
+    public static List<String> verify(Zip source, Map<Path, Summary> output, List<PluginFile> pluginFiles, Set<Path> allowedChanges) throws IOException {
+        List<String> mismatches = new ArrayList<>();
+        Map<Path, Summary> result = output;
+
+        Set<Path> pluginPaths = new HashSet<>();
+        for (PluginFile pf : pluginFiles) {
+            pluginPaths.add(pf.inZipPath);
+            Summary entry = result.get(pf.inZipPath);
+            if (entry == null) {
+                mismatches.add("Отсутствует файл плагина: " + pf.inZipPath);
+                continue;
+            }
+            long size = pf.size();
+            long crc = pf.crc();
+            if (entry.size != size || entry.crc != crc)
+                mismatches.add("Файл плагина " + pf.inZipPath + " отличается от источника: " + describe(entry.size, entry.crc) +
+                        ", ожидалось " + describe(size, crc));
+        }
+
+        for (Map.Entry<Path, ZipIndex.Entry> original : source.entries.entrySet()) {
+            Summary entry = result.get(original.getKey());
+            if (entry == null || allowedChanges.contains(original.getKey()) || pluginPaths.contains(original.getKey()))
+                continue;
+            ZipIndex.Entry before = original.getValue();
+            if (entry.size != before.size || entry.crc != before.crc)
+                mismatches.add("Изменён файл " + original.getKey() + ": " + describe(entry.size, entry.crc) +
+                        ", было " + describe(before.size, before.crc));
+        }
+
+        Set<Path> expected = new HashSet<>(source.entries.keySet());
+        expected.removeAll(source.removed());
+        expected.addAll(pluginPaths);
+        if (!expected.equals(result.keySet()))
+            mismatches.add("Список файлов не совпадает с ожидаемым: " +
+                    ListUtils.diff(expected, "expected", new HashSet<>(result.keySet()), "after"));
+        return mismatches;
+    }
+
+    /**
+     * Сверяет central directory, заново прочитанный из созданного файла, с записями, собранными при сохранении:
+     * имена, размеры и CRC-32 в том же порядке, а у каждой записи - локальный заголовок на месте и данные
+     * до начала central directory. Находит недописанный или повреждённый при записи файл без распаковки содержимого.
+     */
+    public static List<String> verifyWritten(ZipWriter.Output written, ZipIndex index) throws IOException {
+        List<String> mismatches = new ArrayList<>();
+        if (index.entries.size() != written.entries.size())
+            mismatches.add("В central directory файла " + index.path.getFileName() + " записей " + index.entries.size() +
+                    ", записано " + written.entries.size());
+        try (FileChannel channel = FileChannel.open(index.path, StandardOpenOption.READ)) {
+            int count = Math.min(index.entries.size(), written.entries.size());
+            for (int i = 0; i < count; i++) {
+                ZipIndex.Entry entry = index.entries.get(i);
+                ZipWriter.Written expected = written.entries.get(i);
+                String name = entry.name();
+                if (!name.equals(expected.name)) {
+                    mismatches.add("Запись №" + i + " в central directory " + name + ", записана " + expected.name);
+                    continue;
+                }
+                if (entry.size != expected.size || entry.crc != expected.crc) {
+                    mismatches.add("Запись " + name + " в central directory: " + describe(entry.size, entry.crc) +
+                            ", записано " + describe(expected.size, expected.crc));
+                    continue;
+                }
+                try {
+                    if (ZipIndex.dataOffset(channel, entry) + entry.compressedSize > index.centralDirectoryOffset)
+                        mismatches.add("Данные записи " + name + " выходят за начало central directory");
+                } catch (IOException e) {
+                    mismatches.add(e.getMessage());
+                }
+            }
+        }
+        return mismatches;
+    }
+
+    /**
+     * Распаковывает все записи архива параллельно и сверяет размер и CRC-32 содержимого с central directory:
+     * находит повреждённые сжатые данные, которые проверка по central directory не видит
+     */
+    public static List<String> verifyContent(Zip zip) throws IOException {
+        return verifyContent(zip, Progress.NONE.start("verify-content", -1));
+    }
+
+    /**
+     * То же с учётом распакованных байт в progress. Записи, не помещающиеся в массив, проверяются потоком по одной.
+     */
+    public static List<String> verifyContent(Zip zip, Progress.Counter progress) throws IOException {
+        List<String> mismatches = new ArrayList<>();
+        List<ZipIndex.Entry> inMemory = new ArrayList<>();
+        List<ZipIndex.Entry> streamed = new ArrayList<>();
+        for (ZipIndex.Entry entry : zip.index.entries)
+            (ZipIndex.fitsInMemory(entry) ? inMemory : streamed).add(entry);
+
+        new ZipLoader().load(zip, inMemory, false, (entry, content) -> {
+            progress.add(content.length);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            checkContent(entry, content.length, crc.getValue(), mismatches);
+        });
+        byte[] buffer = ZipUtils.buffer();
+        for (ZipIndex.Entry entry : streamed) {
+            CRC32 crc = new CRC32();
+            long size = 0;
+            try (InputStream in = progress.count(ZipIndex.source(zip.path, entry).open())) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, n);
+                    size += n;
+                }
+            }
+            checkContent(entry, size, crc.getValue(), mismatches);
+        }
+        return mismatches;
+    }
+
+    private static void checkContent(ZipIndex.Entry entry, long size, long crc, List<String> mismatches) {
+        if (size != entry.size || crc != entry.crc)
+            mismatches.add("Содержимое файла " + entry.name() + " не совпадает с central directory: " +
+                    describe(size, crc) + ", ожидалось " + describe(entry.size, entry.crc));
+    }
+
+    /**
+     * Сверяет SHA-256 файлов: все файлы исходного архива, кроме allowedChanges и заменённых файлов плагина,
+     * должны совпадать побайтно, файлы плагина - с набором, других файлов быть не должно
+     *
+     * @param allowedChanges полные имена файлов исходного архива, содержимое которых может отличаться
+     */
+    public static List<String> verifyManifest(ContentManifest source, ContentManifest output, ContentManifest pluginFiles, Set<String> allowedChanges) {
+        List<String> mismatches = new ArrayList<>();
+        for (ContentManifest.Item expected : pluginFiles.items().values()) {
+            ContentManifest.Item actual = output.get(expected.name);
+            if (actual == null)
+                mismatches.add("Отсутствует файл плагина: " + expected.name);
+            else if (!actual.matches(expected))
+                mismatches.add("Файл плагина " + expected.name + " отличается от источника: " + actual + ", ожидалось " + expected);
+        }
+        for (ContentManifest.Item before : source.items().values()) {
+            if (allowedChanges.contains(before.name) || pluginFiles.get(before.name) != null)
+                continue;
+            ContentManifest.Item actual = output.get(before.name);
+            if (actual == null)
+                mismatches.add("Отсутствует файл: " + before.name);
+            else if (!actual.matches(before))
+                mismatches.add("Изменён файл " + before.name + ": " + actual + ", было " + before);
+        }
+        for (String name : output.items().keySet()) {
+            if (source.get(name) == null && pluginFiles.get(name) == null)
+                mismatches.add("Лишний файл в архиве: " + name);
+        }
+        return mismatches;
+    }
+
+    private static String describe(long size, long crc) {
+        return size + " байт, crc " + Long.toHexString(crc);
+    }
+
+
+    /**
+     * Размер и CRC-32 записи созданного архива
+     */
+    public static class Summary {
+        public final long size;
+        public final long crc;
+
+        public Summary(long size, long crc) {
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+}
@@ -0,0 +1,565 @@
+package at.allure.upgrade.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+import static at.allure.upgrade.core.ZipIndex.*;
+
+/**
+ * Запись zip-архива: неизменённые записи копируются из исходного архива в сжатом виде,
+ * сжимаются только новые и изменённые файлы. Размеры и смещения от 4 ГБ и число записей от 65535
+ * записываются в формате ZIP64; поля ZIP64 исходных записей не копируются, а строятся заново.
+ */
+public class ZipWriter implements Closeable {
+    private static final int UTF8_FLAG = 0x800;
+    private static final int DATA_DESCRIPTOR_FLAG = 0x8;
+    private static final int VERSION_DEFLATED = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final ParallelDeflater DEFLATER = new ParallelDeflater();
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final OutputStream out;
+    private final List<Record> records = new ArrayList<>();
+    private final byte[] copyBuffer = new byte[64 * 1024];
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private long position;
+    private boolean finished;
+
+
+    public ZipWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Копирует запись исходного архива без распаковки: сжатые байты, CRC и размеры переносятся как есть
+     */
+    public void copyRaw(FileChannel source, ZipIndex.Entry entry) throws IOException {
+        long dataOffset = dataOffset(source, entry);
+        long localExtraOffset = entry.localHeaderOffset + LOC_HEADER_SIZE + entry.nameLength;
+        ByteBuffer localExtra = readFully(source, localExtraOffset, (int) (dataOffset - localExtraOffset));
+
+        Record record = copyOf(entry, entry.method, entry.crc, entry.compressedSize);
+        writeLocalHeader(record, localExtra);
+        copy(source, dataOffset, entry.compressedSize, entry.name());
+    }
+
+    /**
+     * Сжимает запись исходного архива заново потоком, без чтения в память, поэтому размер записи не ограничен.
+     * Размеры нужны в локальном заголовке до данных, так что сжатые байты сначала пишутся во временный файл в tempDir.
+     */
+    public void recompress(FileChannel source, ZipIndex.Entry entry, int level, Path tempDir) throws IOException {
+        long dataOffset = dataOffset(source, entry);
+        long localExtraOffset = entry.localHeaderOffset + LOC_HEADER_SIZE + entry.nameLength;
+        ByteBuffer localExtra = readFully(source, localExtraOffset, (int) (dataOffset - localExtraOffset));
+
+        try (FileChannel compressed = tempFile(tempDir)) {
+            long size;
+            try (InputStream in = ZipIndex.open(source, entry)) {
+                size = deflate(in, compressed, level);
+            }
+            if (size != entry.size || crc.getValue() != entry.crc)
+                throw new IOException("Содержимое записи " + entry.name() + " не совпадает с central directory: " + size +
+                        " байт, crc " + Long.toHexString(crc.getValue()));
+
+            Record record = copyOf(entry, ZipEntry.DEFLATED, entry.crc, compressed.size());
+            record.versionNeeded = Math.max(entry.versionNeeded, VERSION_DEFLATED);
+            record.writtenCrc = crc.getValue();
+            record.checked = true;
+            writeLocalHeader(record, localExtra);
+            copy(compressed, 0, compressed.size(), entry.name());
+        }
+    }
+
+    /**
+     * Сжимает новый файл потоком, без чтения в память, поэтому размер файла не ограничен;
+     * сжатые байты сначала пишутся во временный файл в tempDir
+     */
+    public void write(String name, ByteSource content, int level, Path tempDir) throws IOException {
+        write(ByteBuffer.wrap(name.getBytes(StandardCharsets.UTF_8)), content, null, level, tempDir);
+    }
+
+    /**
+     * Сжимает изменённое содержимое записи исходного архива потоком, сохраняя её атрибуты
+     */
+    public void replace(ZipIndex.Entry entry, ByteSource content, int level, Path tempDir) throws IOException {
+        write(entry.rawName(), content, entry, level, tempDir);
+    }
+
+    private void write(ByteBuffer rawName, ByteSource content, ZipIndex.Entry original, int level, Path tempDir) throws IOException {
+        try (FileChannel compressed = tempFile(tempDir)) {
+            long expected = content.size();
+            long size;
+            try (InputStream in = content.open()) {
+                size = deflate(in, compressed, level);
+            }
+            if (expected >= 0 && size != expected)
+                throw new IOException("Размер " + content + " изменился при чтении: " + size + " байт вместо " + expected);
+
+            Record record = newRecord(rawName, original, ZipEntry.DEFLATED, crc.getValue(), compressed.size(), size);
+            record.writtenCrc = crc.getValue();
+            record.checked = true;
+            writeLocalHeader(record, EMPTY);
+            copy(compressed, 0, compressed.size(), ZipIndex.decodeName(rawName, record.flags));
+        }
+    }
+
+    /**
+     * Временный файл сжатых байтов в tempDir, удаляется при закрытии
+     */
+    private static FileChannel tempFile(Path tempDir) throws IOException {
+        Path temp = Files.createTempFile(tempDir, "allure-upgrade-", ".deflate");
+        return FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /**
+     * Сжимает поток в канал временного файла, возвращает число прочитанных байт; их CRC-32 остаётся в crc
+     */
+    private long deflate(InputStream in, FileChannel compressed, int level) throws IOException {
+        Deflater deflater = new Deflater(level, true);
+        long size = 0;
+        crc.reset();
+        try {
+            // finish() вместо close(): канал временного файла нужен открытым для копирования
+            DeflaterOutputStream out = new DeflaterOutputStream(Channels.newOutputStream(compressed), deflater, copyBuffer.length);
+            int n;
+            while ((n = in.read(copyBuffer)) > 0) {
+                crc.update(copyBuffer, 0, n);
+                out.write(copyBuffer, 0, n);
+                size += n;
+            }
+            out.finish();
+        } finally {
+            deflater.end();
+        }
+        return size;
+    }
+
+    /**
+     * Запись с атрибутами записи исходного архива
+     */
+    private static Record copyOf(ZipIndex.Entry entry, int method, long crc, long compressedSize) {
+        Record record = new Record(entry.rawName(), entry.flags & ~DATA_DESCRIPTOR_FLAG, method, entry.dosTime,
+                crc, compressedSize, entry.size);
+        record.versionMadeBy = entry.versionMadeBy;
+        record.versionNeeded = entry.versionNeeded;
+        record.extra = entry.extra();
+        record.comment = entry.comment();
+        record.internalAttributes = entry.internalAttributes;
+        record.externalAttributes = entry.externalAttributes;
+        return record;
+    }
+
+    /**
+     * Копирует count байт канала с позиции position в поток архива
+     */
+    private void copy(FileChannel source, long position, long count, String name) throws IOException {
+        long remaining = count;
+        long sourcePos = position;
+        ByteBuffer buffer = ByteBuffer.wrap(copyBuffer);
+        while (remaining > 0) {
+            buffer.clear().limit((int) Math.min(copyBuffer.length, remaining));
+            int read = source.read(buffer, sourcePos);
+            if (read < 0)
+                throw new IOException("Неожиданный конец данных записи " + name);
+            write(copyBuffer, 0, read);
+            sourcePos += read;
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Сжимает и записывает новый файл
+     */
+    public void write(String name, byte[] content) throws IOException {
+        write(name, DEFLATER.compress(content));
+    }
+
+    /**
+     * Записывает новый файл, сжатый заранее
+     */
+    public void write(String name, ParallelDeflater.Compressed content) throws IOException {
+        write(ByteBuffer.wrap(name.getBytes(StandardCharsets.UTF_8)), content, null);
+    }
+
+    /**
+     * Записывает изменённое содержимое записи исходного архива, сохраняя её атрибуты
+     */
+    public void replace(ZipIndex.Entry entry, ParallelDeflater.Compressed content) throws IOException {
+        write(entry.rawName(), content, entry);
+    }
+
+    private void write(ByteBuffer rawName, ParallelDeflater.Compressed content, ZipIndex.Entry original) throws IOException {
+        Record record = newRecord(rawName, original, content.method, content.crc, content.data.size(), content.size);
+        record.writtenCrc = writtenCrc(content);
+        record.checked = true;
+        writeLocalHeader(record, EMPTY);
+        write(content.data.buffer());
+    }
+
+    /**
+     * Запись нового файла с текущим временем; для изменённой записи исходного архива - с её атрибутами
+     */
+    private static Record newRecord(ByteBuffer rawName, ZipIndex.Entry original, int method, long crc, long compressedSize, long size) {
+        int flags = original == null ? UTF8_FLAG : original.flags & UTF8_FLAG;
+        Record record = new Record(rawName, flags, method, dosTime(LocalDateTime.now()), crc, compressedSize, size);
+        if (original != null) {
+            record.versionMadeBy = original.versionMadeBy;
+            record.comment = original.comment();
+            record.internalAttributes = original.internalAttributes;
+            record.externalAttributes = original.externalAttributes;
+        }
+        return record;
+    }
+
+    /**
+     * CRC-32 распакованных байтов, которые пишутся в архив, либо -1, если сжатые данные повреждены.
+     * Считается по тому же массиву, что уходит в поток, поэтому проверка не требует повторного чтения файла;
+     * для содержимого, уже записанного в другой архив, берётся посчитанный тогда результат.
+     */
+    private long writtenCrc(ParallelDeflater.Compressed content) {
+        long cached = content.writtenCrc;
+        if (cached == ParallelDeflater.Compressed.UNCHECKED) {
+            cached = inflatedCrc(content);
+            content.writtenCrc = cached;
+        }
+        return cached;
+    }
+
+    private long inflatedCrc(ParallelDeflater.Compressed content) {
+        crc.reset();
+        if (content.method == ZipEntry.STORED) {
+            crc.update(content.data.buffer());
+            return crc.getValue();
+        }
+        inflater.reset();
+        inflater.setInput(content.data.buffer());
+        long size = 0;
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(copyBuffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    return -1;
+                crc.update(copyBuffer, 0, n);
+                size += n;
+            }
+        } catch (DataFormatException e) {
+            return -1;
+        }
+        return size == content.size ? crc.getValue() : -1;
+    }
+
+    /**
+     * Записи в том виде, в каком они попали в архив, и итоговый размер архива в байтах
+     */
+    public Output output() {
+        List<Written> entries = new ArrayList<>(records.size());
+        for (Record record : records)
+            entries.add(new Written(ZipIndex.decodeName(record.rawName, record.flags),
+                    record.size, record.checked ? record.writtenCrc : record.crc));
+        return new Output(entries, position);
+    }
+
+    /**
+     * Дописывает central directory
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        finished = true;
+        long cenOffset = position;
+        for (Record record : records) {
+            // в central directory ZIP64 хранит только те значения, которые не помещаются в 4 байта
+            boolean size64 = record.size >= ZIP64_MAGIC;
+            boolean compressedSize64 = record.compressedSize >= ZIP64_MAGIC;
+            boolean offset64 = record.localHeaderOffset >= ZIP64_MAGIC;
+            ByteBuffer extra = withoutZip64(record.extra);
+            if (size64 || compressedSize64 || offset64)
+                extra = concat(zip64Extra(size64 ? record.size : -1, compressedSize64 ? record.compressedSize : -1,
+                        offset64 ? record.localHeaderOffset : -1), extra);
+            checkExtra(record, extra);
+            ByteBuffer cen = header(CEN_HEADER_SIZE);
+            cen.putInt(CEN_SIG)
+                    .putShort((short) record.versionMadeBy)
+                    .putShort((short) (size64 || compressedSize64 || offset64 ? Math.max(record.versionNeeded, VERSION_ZIP64) : record.versionNeeded))
+                    .putShort((short) record.flags)
+                    .putShort((short) record.method)
+                    .putInt(record.dosTime)
+                    .putInt((int) record.crc)
+                    .putInt((int) (compressedSize64 ? ZIP64_MAGIC : record.compressedSize))
+                    .putInt((int) (size64 ? ZIP64_MAGIC : record.size))
+                    .putShort((short) record.rawName.remaining())
+                    .putShort((short) extra.remaining())
+                    .putShort((short) record.comment.remaining())
+                    .putShort((short) 0)
+                    .putShort((short) record.internalAttributes)
+                    .putInt((int) record.externalAttributes)
+                    .putInt((int) (offset64 ? ZIP64_MAGIC : record.localHeaderOffset));
+            write(cen.array(), 0, CEN_HEADER_SIZE);
+            write(record.rawName);
+            write(extra);
+            write(record.comment);
+        }
+        long cenSize = position - cenOffset;
+
+        long count = records.size();
+        boolean zip64 = count >= ZIP64_MAGIC_COUNT || cenSize >= ZIP64_MAGIC || cenOffset >= ZIP64_MAGIC;
+        if (zip64) {
+            long zip64EndOffset = position;
+            ByteBuffer zip64End = header(ZIP64_END_HEADER_SIZE);
+            zip64End.putInt(ZIP64_END_SIG)
+                    .putLong(ZIP64_END_HEADER_SIZE - 12) // размер записи без сигнатуры и этого поля
+                    .putShort((short) VERSION_ZIP64)
+                    .putShort((short) VERSION_ZIP64)
+                    .putInt(0)
+                    .putInt(0)
+                    .putLong(count)
+                    .putLong(count)
+                    .putLong(cenSize)
+                    .putLong(cenOffset);
+            write(zip64End.array(), 0, ZIP64_END_HEADER_SIZE);
+            ByteBuffer locator = header(ZIP64_LOCATOR_SIZE);
+            locator.putInt(ZIP64_LOCATOR_SIG)
+                    .putInt(0)
+                    .putLong(zip64EndOffset)
+                    .putInt(1);
+            write(locator.array(), 0, ZIP64_LOCATOR_SIZE);
+        }
+
+        ByteBuffer end = header(END_HEADER_SIZE);
+        end.putInt(END_SIG)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) Math.min(count, ZIP64_MAGIC_COUNT))
+                .putShort((short) Math.min(count, ZIP64_MAGIC_COUNT))
+                .putInt((int) Math.min(cenSize, ZIP64_MAGIC))
+                .putInt((int) Math.min(cenOffset, ZIP64_MAGIC))
+                .putShort((short) 0);
+        write(end.array(), 0, END_HEADER_SIZE);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            inflater.end();
+            out.close();
+        }
+    }
+
+    /**
+     * Пишет локальный заголовок. В локальном заголовке ZIP64 содержит оба размера сразу, если хотя бы один
+     * из них не помещается в 4 байта; смещение заголовка в нём не хранится.
+     */
+    private void writeLocalHeader(Record record, ByteBuffer localExtra) throws IOException {
+        record.localHeaderOffset = position;
+        records.add(record);
+        boolean zip64 = record.size >= ZIP64_MAGIC || record.compressedSize >= ZIP64_MAGIC;
+        ByteBuffer extra = withoutZip64(localExtra);
+        if (zip64)
+            extra = concat(zip64Extra(record.size, record.compressedSize, -1), extra);
+        checkExtra(record, extra);
+        ByteBuffer loc = header(LOC_HEADER_SIZE);
+        loc.putInt(LOC_SIG)
+                .putShort((short) (zip64 ? Math.max(record.versionNeeded, VERSION_ZIP64) : record.versionNeeded))
+                .putShort((short) record.flags)
+                .putShort((short) record.method)
+                .putInt(record.dosTime)
+                .putInt((int) record.crc)
+                .putInt((int) (zip64 ? ZIP64_MAGIC : record.compressedSize))
+                .putInt((int) (zip64 ? ZIP64_MAGIC : record.size))
+                .putShort((short) record.rawName.remaining())
+                .putShort((short) extra.remaining());
+        write(loc.array(), 0, LOC_HEADER_SIZE);
+        write(record.rawName);
+        write(extra);
+    }
+
+    /**
+     * Поле extra ZIP64 (id 0x0001) из заданных значений в порядке спецификации, -1 - значение не пишется
+     */
+    private static ByteBuffer zip64Extra(long size, long compressedSize, long localHeaderOffset) {
+        int length = (size >= 0 ? 8 : 0) + (compressedSize >= 0 ? 8 : 0) + (localHeaderOffset >= 0 ? 8 : 0);
+        ByteBuffer extra = header(4 + length);
+        extra.putShort((short) ZIP64_EXTRA_ID).putShort((short) length);
+        if (size >= 0)
+            extra.putLong(size);
+        if (compressedSize >= 0)
+            extra.putLong(compressedSize);
+        if (localHeaderOffset >= 0)
+            extra.putLong(localHeaderOffset);
+        extra.flip();
+        return extra;
+    }
+
+    /**
+     * extra без полей ZIP64: смещения и размеры в новом архиве свои, поэтому эти поля строятся заново
+     */
+    static ByteBuffer withoutZip64(ByteBuffer extra) {
+        ByteBuffer source = extra.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = source.position();
+        int end = source.limit();
+        boolean found = false;
+        for (int pos = start; pos + 4 <= end; pos += 4 + Short.toUnsignedInt(source.getShort(pos + 2))) {
+            if (Short.toUnsignedInt(source.getShort(pos)) == ZIP64_EXTRA_ID) {
+                found = true;
+                break;
+            }
+        }
+        if (!found)
+            return extra;
+        ByteBuffer result = ByteBuffer.allocate(end - start);
+        int pos = start;
+        while (pos < end) {
+            int blockEnd = pos + 4 <= end ? Math.min(end, pos + 4 + Short.toUnsignedInt(source.getShort(pos + 2))) : end;
+            if (pos + 4 > end || Short.toUnsignedInt(source.getShort(pos)) != ZIP64_EXTRA_ID) {
+                ByteBuffer block = source.duplicate();
+                block.limit(blockEnd).position(pos);
+                result.put(block);
+            }
+            pos = blockEnd;
+        }
+        result.flip();
+        return result;
+    }
+
+    private static ByteBuffer concat(ByteBuffer first, ByteBuffer second) {
+        ByteBuffer result = ByteBuffer.allocate(first.remaining() + second.remaining());
+        result.put(first.duplicate()).put(second.duplicate());
+        result.flip();
+        return result;
+    }
+
+    private static void checkExtra(Record record, ByteBuffer extra) throws IOException {
+        if (extra.remaining() > 0xFFFF)
+            throw new IOException("Поле extra записи " + StandardCharsets.UTF_8.decode(record.rawName.duplicate()) + " больше 65535 байт");
+    }
+
+    private void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        position += length;
+    }
+
+    /**
+     * Пишет оставшиеся байты буфера, не меняя его позицию (буфер может быть срезом отображения central directory)
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+        ByteBuffer source = buffer.duplicate();
+        while (source.hasRemaining()) {
+            int length = Math.min(copyBuffer.length, source.remaining());
+            source.get(copyBuffer, 0, length);
+            write(copyBuffer, 0, length);
+        }
+    }
+
+    private static ByteBuffer header(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static int dosTime(LocalDateTime time) {
+        if (time.getYear() < 1980)
+            return (1 << 21) | (1 << 16);
+        return (time.getYear() - 1980) << 25
+                | time.getMonthValue() << 21
+                | time.getDayOfMonth() << 16
+                | time.getHour() << 11
+                | time.getMinute() << 5
+                | time.getSecond() >> 1;
+    }
+
+
+    /**
+     * Запись, попадающая в central directory нового архива
+     */
+    private static class Record {
+        final ByteBuffer rawName;
+        final int flags;
+        final int method;
+        final int dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        int versionMadeBy = VERSION_DEFLATED;
+        int versionNeeded = VERSION_DEFLATED;
+        ByteBuffer extra = EMPTY;
+        ByteBuffer comment = EMPTY;
+        int internalAttributes;
+        long externalAttributes;
+        long localHeaderOffset;
+        /**
+         * CRC-32, посчитанный по записанным байтам; для скопированных без распаковки записей не считается
+         */
+        long writtenCrc;
+        boolean checked;
+
+        Record(ByteBuffer rawName, int flags, int method, int dosTime, long crc, long compressedSize, long size) {
+            this.rawName = rawName;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+    }
+
+
+    /**
+     * Запись архива в том виде, в каком она записана: имя, размер и CRC-32 содержимого.
+     * Для новых и изменённых файлов CRC-32 посчитан по записанным сжатым байтам, -1 - данные повреждены.
+     */
+    public static class Written {
+        public final String name;
+        public final long size;
+        public final long crc;
+
+        Written(String name, long size, long crc) {
+            this.name = name;
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+
+
+    /**
+     * Итог записи архива
+     */
+    public static class Output {
+        public final List<Written> entries;
+        /**
+         * Сколько байт записано в поток
+         */
+        public final long size;
+
+        Output(List<Written> entries, long size) {
+            this.entries = Collections.unmodifiableList(entries);
+            this.size = size;
+        }
+    }
+}
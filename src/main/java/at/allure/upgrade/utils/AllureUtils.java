@@ -12,17 +12,15 @@ import java.util.regex.Pattern;
 public abstract class AllureUtils {
 //TODO: MVC-MVVM
     public static boolean isAllureZip(Zip zip) {
-        return zip.files.containsKey(Paths.get("bin", "allure"));
+        return zip.contains(Paths.get("bin", "allure"));
     }
 
     /**
      * Максимальная версия из lib/allure-*, иначе "Unrecognized version"
      */
     public static String parseAllureVersion(Zip zip) {
-        final String allureJarPrefix = Paths.get("lib", "allure-").toString();
-        return zip.files.keySet().stream()
+        return zip.withPrefix("lib/allure-").stream()
                 .map(Path::toString)
-                .filter(name -> name.startsWith(allureJarPrefix))
                 .map(AllureUtils::versionFrom)
                 .filter(Optional::isPresent)
                 .map(Optional::get)
@@ -67,8 +65,39 @@ public abstract class AllureUtils {
         };
     }
 
+    /**
+     * Имя файла уже такое, какое даёт {@link #update(Path)}: постфикс стоит прямо перед версией.
+     * Только по имени архив модифицированным не считается, см. {@link #output(Path)}.
+     */
+    public static boolean isUpdated(Path path) {
+        String postfix = postfix();
+        if (postfix.startsWith("-"))
+            postfix = postfix.substring(1);
+        if (!postfix.endsWith("-"))
+            postfix += '-';
+        String fileName = path.getFileName().toString();
+        Matcher version = VERSION_PATTERN.matcher(fileName);
+        if (postfix.length() == 1 || !version.find())
+            return false;
+        String beforeVersion = fileName.substring(0, version.start(1));
+        return beforeVersion.equals(postfix) || beforeVersion.endsWith("-" + postfix);
+    }
+
+    private static String postfix() {
+        return System.getProperty("Updated.allure.name.postfix", "with-resultiks");
+    }
+
+    /**
+     * Куда сохранять результат модификации: рядом с исходным архивом под новым именем, а архив с именем
+     * модифицированного - на место исходного. Перезаписывать на месте можно, только если по содержимому
+     * архив действительно модифицировался ранее - это проверяет вызывающий.
+     */
+    public static Path output(Path path) {
+        return isUpdated(path) ? path : update(path);
+    }
+
     public static Path update(Path path) {
-        String postfix = System.getProperty("Updated.allure.name.postfix", "with-resultiks");
+        String postfix = postfix();
         String fileName = path.getFileName().toString();
         Matcher version = VERSION_PATTERN.matcher(fileName);
         if (version.find()) {
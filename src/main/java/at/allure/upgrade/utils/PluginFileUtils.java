@@ -62,6 +62,19 @@ public abstract class PluginFileUtils {
         }
     }
 
+    /**
+     * Папки с allure-plugin.yml внутри root, например в zip-архиве с несколькими плагинами
+     */
+    public static List<Path> pluginDirectories(Path root) throws IOException {
+        try (Stream<Path> stream = Files.walk(root)) {
+            return stream.filter(p -> p.getFileName() != null && p.getFileName().toString().equals(PLUGIN_YML))
+                    .filter(Files::isRegularFile)
+                    .map(Path::getParent)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
     private static Map<String, Path> getAllFilesFromDirectory(Path dir) throws IOException {
         try (Stream<Path> stream = Files.walk(dir)) {
             return stream.filter(Files::isRegularFile)
@@ -71,20 +84,26 @@ public abstract class PluginFileUtils {
 
     private static List<PluginFile> processPluginFiles(Map<String, Path> files, Path pluginYml) throws Exception {
         List<String> lines = Files.readAllLines(pluginYml);
+        PluginFile yml = new PluginFile.FromPath(Paths.get(PLUGIN_YML), pluginYml);
+        String id = yml.pluginId();
+        if (id == null) {
+            throw new RuntimeException("В " + PLUGIN_YML + " не найден id плагина");
+        }
+        Path pluginDir = pluginDir(id);
         String jarName = findJarName(files, lines);
         List<String> staticFiles = findStaticFiles(lines);
 
         List<PluginFile> result = new ArrayList<>();
-        result.add(new PluginFile.FromPath(PLUGIN_DIR.resolve(PLUGIN_YML), pluginYml));
+        result.add(new PluginFile.FromPath(pluginDir.resolve(PLUGIN_YML), pluginYml));
 
         if (jarName != null) {
             Path jarPath = getValidPath(jarName, files);
-            result.add(new PluginFile.FromPath(PLUGIN_DIR.resolve(jarName), jarPath));
+            result.add(new PluginFile.FromPath(pluginDir.resolve(jarName), jarPath));
         }
 
         for (String jsOrCss : staticFiles) {
             Path path = getValidPath(jsOrCss, files);
-            result.add(new PluginFile.FromPath(PLUGIN_DIR.resolve(STATIC_DIR).resolve(jsOrCss), path));
+            result.add(new PluginFile.FromPath(pluginDir.resolve(STATIC_DIR).resolve(jsOrCss), path));
         }
 
         return result;
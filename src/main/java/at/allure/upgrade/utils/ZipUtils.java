@@ -1,37 +1,245 @@
 package at.allure.upgrade.utils;
 
-import java.io.ByteArrayOutputStream;
+import at.allure.upgrade.core.ByteSource;
+import at.allure.upgrade.core.ContentStore;
+import at.allure.upgrade.core.ParallelDeflater;
+import at.allure.upgrade.core.Progress;
+import at.allure.upgrade.core.Zip;
+import at.allure.upgrade.core.ZipIndex;
+import at.allure.upgrade.core.ZipLoader;
+import at.allure.upgrade.core.ZipWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
 
 public abstract class ZipUtils {
 
-    public static void save(Path path, Map<Path, byte[]> files, String rootDir) throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        try (ZipOutputStream zipOutputStream = new ZipOutputStream(byteArrayOutputStream)) {
-            files.forEach((inZipPath, bytes) -> {
-                try {
-                    inZipPath = rootDir.isEmpty() ? inZipPath : Paths.get(rootDir).resolve(inZipPath);
-                    String entryName = inZipPath.toString();
-                    ZipEntry newEntry = new ZipEntry(entryName);
-                    zipOutputStream.putNextEntry(newEntry);
-                    zipOutputStream.write(bytes);
-                    zipOutputStream.closeEntry();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> COPY_BUFFERS = ThreadLocal.withInitial(() -> new byte[COPY_BUFFER_SIZE]);
+
+    /**
+     * Сохраняет архив, копируя неизменённые записи исходного архива в сжатом виде.
+     * Сжимаются заново только новые и изменённые файлы, параллельно на fork-join пуле;
+     * с -DUpdated.allure.recompress=true заново сжимаются все файлы. Не помещающиеся в память файлы (больше 2 ГБ),
+     * в том числе добавленные, сжимаются потоком по одному.
+     * Возвращает записи в том виде, в каком они записаны, для проверки без повторного чтения архива.
+     */
+    public static ZipWriter.Output save(Path path, Zip zip) throws IOException {
+        return save(path, zip, Progress.NONE.start("save", -1));
+    }
+
+    /**
+     * То же, записанные в файл байты учитываются в progress
+     */
+    public static ZipWriter.Output save(Path path, Zip zip, Progress.Counter progress) throws IOException {
+        boolean recompress = Boolean.getBoolean("Updated.allure.recompress");
+        Map<Path, ContentStore.Content> changes = zip.changes();
+        ParallelDeflater deflater = new ParallelDeflater();
+        // не больше стольких файлов сжимаются одновременно, чтобы не держать в памяти весь архив
+        int window = 2 * ForkJoinPool.getCommonPoolParallelism() + 2;
+        ZipWriter.Output[] output = {null};
+        writeAtomically(path, out -> {
+            try (FileChannel source = FileChannel.open(zip.path, StandardOpenOption.READ);
+                 ZipWriter writer = new ZipWriter(progress.count(out))) {
+                Deque<PendingEntry> pending = new ArrayDeque<>();
+                int[] compressing = {0};
+                for (Map.Entry<Path, ZipIndex.Entry> entry : zip.entries.entrySet()) {
+                    if (zip.removed().contains(entry.getKey()))
+                        continue;
+                    ContentStore.Content changed = changes.get(entry.getKey());
+                    ZipIndex.Entry original = entry.getValue();
+                    if (changed != null && !changed.isBuffered()) {
+                        pending.add(PendingEntry.streamed(original, null, changed));
+                    } else if (changed != null) {
+                        pending.add(new PendingEntry(original, null, compressed(zip, deflater, entry.getKey(), changed)));
+                        compressing[0]++;
+                    } else if (recompress && !original.isDirectory() && !ZipIndex.fitsInMemory(original)) {
+                        pending.add(PendingEntry.streamed(original, null, null));
+                    } else if (recompress && !original.isDirectory()) {
+                        pending.add(new PendingEntry(original, null, ForkJoinPool.commonPool().submit(() -> {
+                            try {
+                                // один канал на все записи, распаковка - Inflater потока пула
+                                return deflater.compress(ZipLoader.read(source, original));
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        })));
+                        compressing[0]++;
+                    } else {
+                        pending.add(new PendingEntry(original, null, null));
+                    }
+                    while (compressing[0] > window)
+                        pending.poll().writeTo(writer, source, compressing);
+                }
+                for (Map.Entry<Path, ContentStore.Content> change : changes.entrySet()) {
+                    if (zip.entries.containsKey(change.getKey()))
+                        continue;
+                    String name = entryName(zip.rootDir, change.getKey());
+                    if (!change.getValue().isBuffered()) {
+                        pending.add(PendingEntry.streamed(null, name, change.getValue()));
+                    } else {
+                        pending.add(new PendingEntry(null, name, compressed(zip, deflater, change.getKey(), change.getValue())));
+                        compressing[0]++;
+                    }
                 }
-            });
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+                while (!pending.isEmpty())
+                    pending.poll().writeTo(writer, source, compressing);
+                writer.finish();
+                output[0] = writer.output();
+            }
+        });
+        return output[0];
+    }
+
+    private static ForkJoinTask<ParallelDeflater.Compressed> compressed(Zip zip, ParallelDeflater deflater, Path inZipPath, ContentStore.Content content) {
+        ForkJoinTask<ParallelDeflater.Compressed> started = zip.compressed(inZipPath);
+        return started != null ? started : deflater.submit(content);
+    }
+
+    /**
+     * Запись, ожидающая своей очереди на запись в архив в исходном порядке
+     */
+    private static class PendingEntry {
+        final ZipIndex.Entry original;
+        final String name;
+        final ForkJoinTask<ParallelDeflater.Compressed> compressed;
+        /**
+         * Запись сжимается потоком при записи в архив: из исходного архива, см. {@link ZipWriter#recompress},
+         * либо из content, если он задан
+         */
+        boolean stream;
+        ContentStore.Content content;
+
+        PendingEntry(ZipIndex.Entry original, String name, ForkJoinTask<ParallelDeflater.Compressed> compressed) {
+            this.original = original;
+            this.name = name;
+            this.compressed = compressed;
+        }
+
+        static PendingEntry streamed(ZipIndex.Entry original, String name, ContentStore.Content content) {
+            PendingEntry entry = new PendingEntry(original, name, null);
+            entry.stream = true;
+            entry.content = content;
+            return entry;
+        }
+
+        void writeTo(ZipWriter writer, FileChannel source, int[] compressing) throws IOException {
+            if (stream) {
+                Path tempDir = ContentStore.spillDirectory();
+                if (content == null)
+                    writer.recompress(source, original, Deflater.DEFAULT_COMPRESSION, tempDir);
+                else if (original != null)
+                    writer.replace(original, ByteSource.of(content), Deflater.DEFAULT_COMPRESSION, tempDir);
+                else
+                    writer.write(name, ByteSource.of(content), Deflater.DEFAULT_COMPRESSION, tempDir);
+                return;
+            }
+            if (compressed == null) {
+                writer.copyRaw(source, original);
+                return;
+            }
+            compressing[0]--;
+            ParallelDeflater.Compressed content;
+            try {
+                content = compressed.join();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (original != null)
+                writer.replace(original, content);
+            else
+                writer.write(name, content);
+        }
+    }
+
+    /**
+     * Пишет файл через временный файл в той же папке: данные сбрасываются на диск (fsync),
+     * после чего временный файл атомарно переименовывается в итоговый.
+     * При ошибке итоговый файл не создаётся и не портится.
+     */
+    public static void writeAtomically(Path path, OutputWriter writer) throws IOException {
+        writeAtomically(path, writer, () -> path);
+    }
+
+    /**
+     * То же, но итоговый файл выбирается после записи данных: target вызывается, когда данные уже на диске,
+     * и должен вернуть путь в той же папке, что и path, либо null - тогда запись не нужна и временный файл удаляется.
+     * Возвращает итоговый путь или null.
+     */
+    public static Path writeAtomically(Path path, OutputWriter writer, Supplier<Path> target) throws IOException {
+        Path temp = path.toAbsolutePath().resolveSibling("." + path.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+                // закрытие потока пишущей стороной не должно закрывать канал до fsync
+                writer.write(new FilterOutputStream(out) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                });
+                out.flush();
+                channel.force(true);
+            }
+            Path result = target.get();
+            if (result == null) {
+                Files.delete(temp);
+                return null;
+            }
+            result = result.toAbsolutePath();
+            try {
+                Files.move(temp, result, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, result, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return result;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
         }
-        Files.write(path, byteArrayOutputStream.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Запись содержимого файла в поток
+     */
+    public interface OutputWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Имя записи в архиве с учётом rootDir, разделитель всегда '/'
+     */
+    public static String entryName(String rootDir, Path inZipPath) {
+        Path fullPath = rootDir.isEmpty() ? inZipPath : Paths.get(rootDir).resolve(inZipPath);
+        return fullPath.toString().replace("\\", "/"); // независимо от ОС
     }
 
     /**
@@ -41,13 +249,98 @@ public abstract class ZipUtils {
      * @return Массив байтов с содержимым потока.
      */
     public static byte[] readStreamToByteArray(InputStream inputStream) throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int length;
-        while ((length = inputStream.read(buffer)) > 0) {
-            byteArrayOutputStream.write(buffer, 0, length);
+        return readStreamToByteArray(inputStream, -1);
+    }
+
+    /**
+     * Считывает весь поток в массив байтов. При известном размере массив выделяется сразу нужной длины
+     * и данные читаются в него без промежуточных копий; если поток оказался длиннее, дочитывается остаток.
+     *
+     * @param size ожидаемый размер, -1 - неизвестен
+     */
+    public static byte[] readStreamToByteArray(InputStream inputStream, long size) throws IOException {
+        if (size < 0 || size > Integer.MAX_VALUE - 8)
+            return inputStream.readAllBytes();
+        byte[] result = new byte[(int) size];
+        int length = inputStream.readNBytes(result, 0, result.length);
+        if (length < result.length)
+            return Arrays.copyOf(result, length);
+        int next = inputStream.read();
+        if (next < 0)
+            return result;
+        byte[] rest = inputStream.readAllBytes();
+        byte[] longer = Arrays.copyOf(result, result.length + 1 + rest.length);
+        longer[result.length] = (byte) next;
+        System.arraycopy(rest, 0, longer, result.length + 1, rest.length);
+        return longer;
+    }
+
+    /**
+     * Буфер копирования текущего потока: переиспользуется всеми копированиями в этом потоке,
+     * поэтому не должен передаваться дальше и использоваться после вложенного копирования
+     */
+    public static byte[] buffer() {
+        return COPY_BUFFERS.get();
+    }
+
+    /**
+     * Копирует поток в канал через буфер текущего потока, возвращает число байт
+     */
+    public static long copy(InputStream in, WritableByteChannel target) throws IOException {
+        byte[] buffer = buffer();
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            wrapped.clear().limit(n);
+            total += write(wrapped, target);
+        }
+        return total;
+    }
+
+    /**
+     * Передаёт count байт файла с позиции position в канал средствами ОС (sendfile/copy_file_range, где доступно)
+     */
+    public static long transfer(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long n = source.transferTo(position + transferred, count - transferred, target);
+            if (n <= 0) {
+                if (position + transferred >= source.size())
+                    throw new IOException("Неожиданный конец файла");
+                // канал не принял данных: повтор transferTo мог бы крутиться вхолостую, остаток копируется через буфер
+                return transferred + copy(source, position + transferred, count - transferred, target);
+            }
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    /**
+     * Копирует count байт файла с позиции position в канал через буфер текущего потока
+     */
+    private static long copy(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(buffer());
+        long copied = 0;
+        while (copied < count) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), count - copied));
+            int n = source.read(buffer, position + copied);
+            if (n < 0)
+                throw new IOException("Неожиданный конец файла");
+            buffer.flip();
+            copied += write(buffer, target);
         }
-        return byteArrayOutputStream.toByteArray();
+        return copied;
+    }
+
+    /**
+     * Пишет оставшиеся байты буфера в канал целиком, возвращает их число
+     */
+    public static int write(ByteBuffer buffer, WritableByteChannel target) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining())
+            target.write(buffer);
+        return length;
     }
 
 }
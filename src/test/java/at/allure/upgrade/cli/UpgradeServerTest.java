@@ -0,0 +1,126 @@
+package at.allure.upgrade.cli;
+
+import at.allure.upgrade.core.PluginFile;
+import at.allure.upgrade.core.PluginFileSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * HTTP-сервис на localhost со свободным портом: модификация архива из тела запроса,
+ * ответ 400 на имена, которые не могут быть именем архива
+ */
+class UpgradeServerTest {
+    private static final String ROOT = "allure-2.24.0/";
+
+    @TempDir
+    Path dir;
+
+    private UpgradeServer server;
+
+    @BeforeEach
+    void start() throws IOException {
+        PluginFileSet pluginFiles = PluginFileSet.fromResources();
+        server = new UpgradeServer(new InetSocketAddress("127.0.0.1", 0), new BatchUpgrade(pluginFiles, 1, null), pluginFiles, 1, 1024 * 1024);
+        server.start();
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(5);
+    }
+
+    @Test
+    void health() throws IOException {
+        HttpURLConnection connection = open("/health");
+        assertEquals(200, connection.getResponseCode());
+    }
+
+    @Test
+    void upgradesPostedArchive() throws IOException {
+        HttpURLConnection connection = post("allure-2.24.0.zip", allure());
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("application/zip", connection.getHeaderField("Content-Type"));
+        assertEquals("2.24.0", connection.getHeaderField("X-Allure-Version"));
+
+        Path output = dir.resolve("output.zip");
+        try (InputStream in = connection.getInputStream()) {
+            Files.copy(in, output);
+        }
+        try (ZipFile zip = new ZipFile(output.toFile())) {
+            for (PluginFile pf : PluginFileSet.fromResources().files)
+                assertNotNull(zip.getEntry(ROOT + pf.inZipPath.toString().replace('\\', '/')), pf.inZipPath.toString());
+        }
+    }
+
+    /**
+     * Корень, закодированный слэш, символ NUL, неверное %-кодирование, имя без версии - ответ 400, а не 500
+     */
+    @Test
+    void rejectsBadNames() throws IOException {
+        byte[] archive = allure();
+        for (String name : new String[]{"/", "%2F", "%2F%2F", "allure-2.24.0%00.zip", "%zz", "..", "allure.zip", ""})
+            assertEquals(400, post(name, archive).getResponseCode(), name);
+        assertEquals(400, postRaw("/upgrade", archive).getResponseCode());
+    }
+
+    @Test
+    void rejectsGet() throws IOException {
+        assertEquals(405, open("/upgrade?name=allure-2.24.0.zip").getResponseCode());
+    }
+
+    private HttpURLConnection post(String rawName, byte[] body) throws IOException {
+        return postRaw("/upgrade?name=" + rawName, body);
+    }
+
+    private HttpURLConnection postRaw(String path, byte[] body) throws IOException {
+        HttpURLConnection connection = open(path);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        return connection;
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        InetSocketAddress address = server.address();
+        return (HttpURLConnection) new URL("http://" + address.getHostString() + ":" + address.getPort() + path).openConnection();
+    }
+
+    /**
+     * Минимальный дистрибутив Allure
+     */
+    private static byte[] allure() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (String[] file : new String[][]{
+                    {ROOT + "bin/allure", "#!/bin/sh\n"},
+                    {ROOT + "config/allure.yml", "plugins:\n  - junit-xml-plugin\n"},
+                    {ROOT + "lib/allure-commandline-2.24.0.jar", "jar"}}) {
+                zip.putNextEntry(new ZipEntry(file[0]));
+                zip.write(file[1].getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return out.toByteArray();
+    }
+}
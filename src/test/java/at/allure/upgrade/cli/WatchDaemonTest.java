@@ -0,0 +1,99 @@
+package at.allure.upgrade.cli;
+
+import at.allure.upgrade.core.PluginFileSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Наблюдение за папкой: архив, лежащий в папке до запуска, обрабатывается; событие по уже обработанному
+ * архиву без изменения размера и времени изменения его повторно не запускает, изменённый архив обрабатывается заново
+ */
+class WatchDaemonTest {
+    private static final long TIMEOUT_MILLIS = 20_000;
+
+    @TempDir
+    Path dir;
+
+    private WatchDaemon daemon;
+    private Thread thread;
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        if (daemon != null) {
+            daemon.stop();
+            thread.join(TIMEOUT_MILLIS);
+        }
+    }
+
+    @Test
+    void processesExistingArchiveOnceUntilItChanges() throws Exception {
+        Path source = allure(dir.resolve("allure-2.24.0.zip"), "jar");
+        Path output = dir.resolve("allure-with-resultiks-2.24.0.zip");
+        start();
+
+        awaitOutput(output);
+        Files.delete(output);
+
+        // событие изменения без изменения размера и времени изменения: повторная обработка создала бы результат заново
+        Files.setLastModifiedTime(source, Files.getLastModifiedTime(source));
+        Thread.sleep(1000);
+        assertFalse(Files.exists(output));
+
+        allure(source, "changed jar");
+        Files.setLastModifiedTime(source, FileTime.fromMillis(Files.getLastModifiedTime(source).toMillis() + 10_000));
+        awaitOutput(output);
+    }
+
+    private void start() {
+        daemon = new WatchDaemon(dir, new BatchUpgrade(PluginFileSet.fromResources(), 1, null), 1, 1, 50);
+        thread = new Thread(() -> {
+            try {
+                daemon.run();
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "watch-test");
+        thread.start();
+    }
+
+    private static void awaitOutput(Path output) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!Files.exists(output)) {
+            if (System.currentTimeMillis() > deadline)
+                fail("Результат " + output + " не появился за " + TIMEOUT_MILLIS + " мс");
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Минимальный дистрибутив Allure; jar - содержимое единственной библиотеки
+     */
+    private static Path allure(Path path, String jar) throws IOException {
+        String root = "allure-2.24.0/";
+        try (OutputStream out = Files.newOutputStream(path);
+             ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry(root + "bin/allure"));
+            zip.write("#!/bin/sh\n".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry(root + "config/allure.yml"));
+            zip.write("plugins:\n  - junit-xml-plugin\n".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry(root + "lib/allure-commandline-2.24.0.jar"));
+            zip.write(jar.getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+        return path;
+    }
+}
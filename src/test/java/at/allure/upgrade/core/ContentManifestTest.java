@@ -0,0 +1,111 @@
+package at.allure.upgrade.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Сверка манифестов SHA-256: подмена содержимого того же размера, пропавшие, лишние и изменённые файлы плагина
+ */
+class ContentManifestTest {
+    private static final String ROOT = "allure-2.24.0";
+    private static final String CONFIG = ROOT + "/config/allure.yml";
+    private static final String JAR = ROOT + "/lib/allure-commandline-2.24.0.jar";
+    private static final Set<String> ALLOWED = Collections.singleton(CONFIG);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void matchingArchivePasses() throws IOException {
+        assertEquals(Collections.emptyList(), verify(output()));
+    }
+
+    /**
+     * Файл того же размера с другим содержимым: CRC-32 и размер не нужны, отличие видно по SHA-256
+     */
+    @Test
+    void detectsChangedContent() throws IOException {
+        Map<String, byte[]> output = output();
+        output.put(JAR, "JAR".getBytes(StandardCharsets.UTF_8));
+        List<String> mismatches = verify(output);
+        assertEquals(1, mismatches.size(), mismatches.toString());
+        assertTrue(mismatches.get(0).startsWith("Изменён файл " + JAR), mismatches.get(0));
+    }
+
+    @Test
+    void detectsMissingAndExtraFiles() throws IOException {
+        Map<String, byte[]> output = output();
+        output.remove(JAR);
+        output.put(ROOT + "/lib/extra.jar", new byte[]{1});
+        List<String> mismatches = verify(output);
+        assertTrue(mismatches.contains("Отсутствует файл: " + JAR), mismatches.toString());
+        assertTrue(mismatches.contains("Лишний файл в архиве: " + ROOT + "/lib/extra.jar"), mismatches.toString());
+    }
+
+    @Test
+    void detectsChangedPluginFile() throws IOException {
+        PluginFile pf = PluginFileSet.fromResources().files.get(0);
+        String name = ROOT + "/" + pf.inZipPath.toString().replace('\\', '/');
+        Map<String, byte[]> output = output();
+        output.put(name, "changed".getBytes(StandardCharsets.UTF_8));
+        List<String> mismatches = verify(output);
+        assertEquals(1, mismatches.size(), mismatches.toString());
+        assertTrue(mismatches.get(0).startsWith("Файл плагина " + name + " отличается"), mismatches.get(0));
+    }
+
+    /**
+     * Исходный архив
+     */
+    private static Map<String, byte[]> source() {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put(ROOT + "/bin/allure", "#!/bin/sh\n".getBytes(StandardCharsets.UTF_8));
+        files.put(CONFIG, "plugins:\n".getBytes(StandardCharsets.UTF_8));
+        files.put(JAR, "jar".getBytes(StandardCharsets.UTF_8));
+        return files;
+    }
+
+    /**
+     * Правильно модифицированный архив: изменён конфиг, добавлены файлы плагина
+     */
+    private static Map<String, byte[]> output() throws IOException {
+        Map<String, byte[]> files = source();
+        files.put(CONFIG, "plugins:\n  - resultiks-plugin\n".getBytes(StandardCharsets.UTF_8));
+        for (PluginFile pf : PluginFileSet.fromResources().files)
+            files.put(ROOT + "/" + pf.inZipPath.toString().replace('\\', '/'), pf.getBytes());
+        return files;
+    }
+
+    private List<String> verify(Map<String, byte[]> output) throws IOException {
+        ContentManifest before = ContentManifest.of(ZipIndex.read(zip(dir.resolve("source.zip"), source()), true));
+        ContentManifest after = ContentManifest.of(ZipIndex.read(zip(dir.resolve("output.zip"), output), true));
+        ContentManifest plugin = ContentManifest.of(PluginFileSet.fromResources(), ROOT);
+        return ZipVerifier.verifyManifest(before, after, plugin, ALLOWED);
+    }
+
+    private static Path zip(Path path, Map<String, byte[]> files) throws IOException {
+        try (OutputStream out = Files.newOutputStream(path);
+             ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                zip.putNextEntry(new ZipEntry(file.getKey()));
+                zip.write(file.getValue());
+                zip.closeEntry();
+            }
+        }
+        return path;
+    }
+}
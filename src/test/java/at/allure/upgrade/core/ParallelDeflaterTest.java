@@ -0,0 +1,129 @@
+package at.allure.upgrade.core;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Параллельное сжатие: склеенные блоки распаковываются обычным Inflater в исходные байты с тем же CRC-32,
+ * несжимаемое содержимое сохраняется без сжатия (STORED)
+ */
+class ParallelDeflaterTest {
+    private static ForkJoinPool pool;
+
+    @BeforeAll
+    static void start() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterAll
+    static void stop() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void singleBlockRoundTrip() throws DataFormatException {
+        assertDeflated(text(10_000));
+    }
+
+    /**
+     * Несколько блоков, последний неполный: словарь и SYNC_FLUSH на границах блоков
+     */
+    @Test
+    void multiBlockRoundTrip() throws DataFormatException {
+        assertDeflated(text(2 * ParallelDeflater.BLOCK_SIZE + 12_345));
+    }
+
+    /**
+     * Содержимое ровно на границе блоков: последний блок полный
+     */
+    @Test
+    void exactBlockBoundaryRoundTrip() throws DataFormatException {
+        assertDeflated(text(2 * ParallelDeflater.BLOCK_SIZE));
+    }
+
+    /**
+     * Случайные байты не сжимаются: запись сохраняется как есть, с CRC-32 исходных данных
+     */
+    @Test
+    void incompressibleContentIsStored() {
+        byte[] content = new byte[ParallelDeflater.BLOCK_SIZE + 1000];
+        new Random(42).nextBytes(content);
+        ParallelDeflater.Compressed compressed = new ParallelDeflater(pool, Deflater.DEFAULT_COMPRESSION).compress(content);
+        assertEquals(ZipEntry.STORED, compressed.method);
+        assertEquals(content.length, compressed.size);
+        assertEquals(crc(content), compressed.crc);
+        assertArrayEquals(content, compressed.data.bytes());
+    }
+
+    @Test
+    void emptyContentIsStored() {
+        ParallelDeflater.Compressed compressed = new ParallelDeflater(pool, Deflater.DEFAULT_COMPRESSION).compress(new byte[0]);
+        assertEquals(ZipEntry.STORED, compressed.method);
+        assertEquals(0, compressed.size);
+        assertEquals(0, compressed.data.size());
+    }
+
+    private static void assertDeflated(byte[] content) throws DataFormatException {
+        ParallelDeflater.Compressed compressed = new ParallelDeflater(pool, Deflater.DEFAULT_COMPRESSION).compress(content);
+        assertEquals(ZipEntry.DEFLATED, compressed.method);
+        assertEquals(content.length, compressed.size);
+        assertTrue(compressed.data.size() < content.length);
+
+        byte[] inflated = inflate(compressed.data.bytes(), content.length);
+        assertArrayEquals(content, inflated);
+        assertEquals(crc(content), compressed.crc);
+        assertEquals(crc(inflated), compressed.crc);
+    }
+
+    /**
+     * Распаковывает deflate-поток без заголовка zlib, как unzip; поток должен быть завершён
+     */
+    private static byte[] inflate(byte[] data, int size) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] content = new byte[size];
+            int length = 0;
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(content, length, content.length - length);
+                if (inflated == 0 && inflater.needsInput())
+                    fail("deflate-поток не завершён после " + length + " байт");
+                length += inflated;
+            }
+            assertEquals(size, length);
+            assertEquals(0, inflater.getRemaining());
+            return content;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static long crc(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    /**
+     * Сжимаемый текст: строки отчёта с номерами, повторы находятся и внутри блока, и через его границу
+     */
+    private static byte[] text(int size) {
+        StringBuilder text = new StringBuilder(size + 64);
+        for (int i = 0; text.length() < size; i++)
+            text.append("testcase ").append(i).append(" status=").append(i % 7 == 0 ? "failed" : "passed").append('\n');
+        text.setLength(size);
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,232 @@
+package at.allure.upgrade.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Потоковая модификация tar.gz: права и длинные имена (GNU и pax) переносятся, актуальный архив не переписывается,
+ * лишние файлы папки плагина удаляются. Исходные архивы собираются в тесте по байтам формата ustar.
+ */
+class TarGzUpgradeTest {
+    private static final String ROOT = "allure-2.24.0/";
+    private static final String CONFIG = "plugins:\n  - junit-xml-plugin\n";
+    private static final String GNU_NAME = ROOT + "lib/" + repeat('g', 120) + ".jar";
+    private static final String PAX_NAME = ROOT + "lib/" + repeat('p', 130) + ".jar";
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Права исполняемого bin/allure и файлов с длинными именами сохраняются, конфиг правится, плагин добавляется
+     */
+    @Test
+    void preservesModesAndLongNames() throws IOException {
+        Path source = allure(new TarBuilder(""), true).write(dir.resolve("allure-2.24.0.tgz"));
+        PluginFileSet pluginFiles = PluginFileSet.fromResources();
+
+        TarGzUpgrade upgrade = new TarGzUpgrade(source, pluginFiles, message -> {
+        });
+        Path output = upgrade.run();
+        assertNotEquals(source, output);
+        assertFalse(upgrade.isUpToDate());
+
+        Map<String, Entry> entries = read(output);
+        assertEquals(0755, entries.get(ROOT + "bin/allure").mode);
+        assertEquals(0600, entries.get(GNU_NAME).mode);
+        assertEquals("gnu", entries.get(GNU_NAME).content);
+        assertEquals(0640, entries.get(PAX_NAME).mode);
+        assertEquals("pax", entries.get(PAX_NAME).content);
+        String config = entries.get(ROOT + "config/allure.yml").content;
+        for (String row : pluginFiles.configRows())
+            assertTrue(config.contains(row), config);
+        for (PluginFile pf : pluginFiles.files)
+            assertTrue(entries.containsKey(ROOT + pf.inZipPath.toString().replace('\\', '/')), pf.inZipPath.toString());
+        assertFalse(entries.containsKey(ROOT + "plugins/resultiks-plugin/old.js"));
+    }
+
+    /**
+     * Повторная модификация архива с именами "./allure-x/...": он уже актуален, файл не перезаписывается
+     * и временных файлов не остаётся
+     */
+    @Test
+    void upToDateArchiveIsNotRewritten() throws IOException {
+        Path source = allure(new TarBuilder("./"), false).write(dir.resolve("allure-2.24.0.tgz"));
+        Path output = new TarGzUpgrade(source, PluginFileSet.fromResources(), message -> {
+        }).run();
+        Object key = Files.readAttributes(output, BasicFileAttributes.class).fileKey();
+        long modified = Files.getLastModifiedTime(output).toMillis();
+
+        TarGzUpgrade again = new TarGzUpgrade(output, PluginFileSet.fromResources(), message -> {
+        });
+        assertEquals(output, again.run());
+        assertTrue(again.isUpToDate());
+        assertEquals(key, Files.readAttributes(output, BasicFileAttributes.class).fileKey());
+        assertEquals(modified, Files.getLastModifiedTime(output).toMillis());
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    /**
+     * Дистрибутив Allure; stale - с файлом в папке плагина, которого нет в наборе
+     */
+    private static TarBuilder allure(TarBuilder tar, boolean stale) {
+        tar.directory(ROOT)
+                .directory(ROOT + "bin/")
+                .file(ROOT + "bin/allure", 0755, "#!/bin/sh\n")
+                .directory(ROOT + "config/")
+                .file(ROOT + "config/allure.yml", 0644, CONFIG)
+                .directory(ROOT + "lib/")
+                .file(ROOT + "lib/allure-commandline-2.24.0.jar", 0644, "jar")
+                .gnuLongName(GNU_NAME, 0600, "gnu")
+                .pax(PAX_NAME, 0640, "pax");
+        if (stale)
+            tar.file(ROOT + "plugins/resultiks-plugin/old.js", 0644, "old");
+        return tar;
+    }
+
+    private static Map<String, Entry> read(Path archive) throws IOException {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(archive))) {
+            Tar.Reader reader = new Tar.Reader(in);
+            Tar.Header header;
+            while ((header = reader.next()) != null) {
+                String content = header.isRegular() ? new String(reader.readAll(), StandardCharsets.UTF_8) : null;
+                entries.put(TarGzUpgrade.normalize(header.name), new Entry(header.mode, content));
+            }
+        }
+        return entries;
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder result = new StringBuilder(count);
+        for (int i = 0; i < count; i++)
+            result.append(c);
+        return result.toString();
+    }
+
+
+    private static final class Entry {
+        final int mode;
+        final String content;
+
+        Entry(int mode, String content) {
+            this.mode = mode;
+            this.content = content;
+        }
+    }
+
+
+    /**
+     * tar-архив, собранный по байтам: заголовки ustar, длинные имена - записью GNU ././@LongLink или pax
+     */
+    private static final class TarBuilder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final String prefix;
+
+        /**
+         * @param prefix приставка ко всем именам, например "./"
+         */
+        TarBuilder(String prefix) {
+            this.prefix = prefix;
+        }
+
+        TarBuilder directory(String name) {
+            header(prefix + name, 0755, 0, Tar.DIRECTORY);
+            return this;
+        }
+
+        TarBuilder file(String name, int mode, String content) {
+            byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+            header(prefix + name, mode, bytes.length, Tar.REGULAR);
+            data(bytes);
+            return this;
+        }
+
+        TarBuilder gnuLongName(String name, int mode, String content) {
+            byte[] longName = (prefix + name + "\0").getBytes(StandardCharsets.UTF_8);
+            header("././@LongLink", 0644, longName.length, Tar.GNU_LONG_NAME);
+            data(longName);
+            return truncated(name, mode, content);
+        }
+
+        TarBuilder pax(String name, int mode, String content) {
+            String record = " path=" + prefix + name + "\n";
+            int length = record.length();
+            while (length != record.length() + String.valueOf(length).length())
+                length = record.length() + String.valueOf(length).length();
+            byte[] pax = (length + record).getBytes(StandardCharsets.UTF_8);
+            header("PaxHeaders/" + mode, 0644, pax.length, Tar.PAX_HEADER);
+            data(pax);
+            return truncated(name, mode, content);
+        }
+
+        /**
+         * Запись с именем, обрезанным до 100 байт поля ustar: настоящее имя - в предшествующей записи
+         */
+        private TarBuilder truncated(String name, int mode, String content) {
+            byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+            header((prefix + name).substring(0, 100), mode, bytes.length, Tar.REGULAR);
+            data(bytes);
+            return this;
+        }
+
+        private void header(String name, int mode, long size, byte type) {
+            byte[] block = new byte[Tar.BLOCK];
+            put(block, 0, name);
+            put(block, 100, String.format("%07o", mode));
+            put(block, 108, "0000000");
+            put(block, 116, "0000000");
+            put(block, 124, String.format("%011o", size));
+            put(block, 136, String.format("%011o", 1_700_000_000L));
+            block[156] = type;
+            put(block, 257, "ustar");
+            put(block, 263, "00");
+            put(block, 265, "user");
+            put(block, 297, "group");
+            for (int i = 148; i < 156; i++)
+                block[i] = ' ';
+            long checksum = 0;
+            for (byte b : block)
+                checksum += Byte.toUnsignedInt(b);
+            put(block, 148, String.format("%06o", checksum));
+            out.write(block, 0, block.length);
+        }
+
+        private void data(byte[] bytes) {
+            out.write(bytes, 0, bytes.length);
+            int padding = (Tar.BLOCK - bytes.length % Tar.BLOCK) % Tar.BLOCK;
+            out.write(new byte[padding], 0, padding);
+        }
+
+        private static void put(byte[] block, int offset, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(bytes, 0, block, offset, bytes.length);
+        }
+
+        Path write(Path path) throws IOException {
+            try (OutputStream file = Files.newOutputStream(path);
+                 GZIPOutputStream gzip = new GZIPOutputStream(file)) {
+                out.writeTo(gzip);
+                gzip.write(new byte[2 * Tar.BLOCK]);
+            }
+            return path;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package at.allure.upgrade.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Модификация zip: неизменённые записи копируются сжатыми байтами, актуальный архив не перезаписывается,
+ * лишние файлы папки плагина удаляются, архив с именем модифицированного, но без файлов плагина,
+ * на месте не перезаписывается
+ */
+class UpgradeTest {
+    private static final String ROOT = "allure-2.24.0/";
+    private static final String CONFIG = ROOT + "config/allure.yml";
+    private static final String STALE = ROOT + "plugins/resultiks-plugin/old.js";
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Исходный архив сжат уровнем 1: повторно сжатые данные отличались бы, а скопированные совпадают побайтно
+     */
+    @Test
+    void unchangedEntriesAreCopiedRaw() throws IOException {
+        Path source = allure(dir.resolve("allure-2.24.0.zip"), false);
+        Path output = upgrade(source);
+        ZipIndex before = ZipIndex.read(source, true);
+        ZipIndex after = ZipIndex.read(output, true);
+        try (FileChannel sourceChannel = FileChannel.open(source);
+             FileChannel outputChannel = FileChannel.open(output)) {
+            for (ZipIndex.Entry entry : before.entries) {
+                if (entry.name().equals(CONFIG))
+                    continue;
+                ZipIndex.Entry copied = after.withPrefix(entry.name()).get(0);
+                assertEquals(entry.name(), copied.name());
+                assertEquals(entry.method, copied.method, entry.name());
+                assertEquals(entry.crc, copied.crc, entry.name());
+                assertEquals(entry.compressedSize, copied.compressedSize, entry.name());
+                assertArrayEquals(raw(sourceChannel, entry), raw(outputChannel, copied), entry.name());
+            }
+        }
+    }
+
+    @Test
+    void upToDateArchiveIsNotRewritten() throws IOException {
+        Path output = upgrade(allure(dir.resolve("allure-2.24.0.zip"), false));
+        Object key = Files.readAttributes(output, BasicFileAttributes.class).fileKey();
+        long modified = Files.getLastModifiedTime(output).toMillis();
+
+        try (Upgrade again = new Upgrade(output, PluginFileSet.fromResources(), message -> {
+        })) {
+            assertEquals(output, again.run());
+            assertTrue(again.isUpToDate());
+        }
+        assertEquals(key, Files.readAttributes(output, BasicFileAttributes.class).fileKey());
+        assertEquals(modified, Files.getLastModifiedTime(output).toMillis());
+    }
+
+    @Test
+    void removesStalePluginFiles() throws IOException {
+        Path output = upgrade(allure(dir.resolve("allure-2.24.0.zip"), true));
+        try (ZipFile zip = new ZipFile(output.toFile())) {
+            assertNull(zip.getEntry(STALE));
+            for (PluginFile pf : PluginFileSet.fromResources().files)
+                assertNotNull(zip.getEntry(ROOT + pf.inZipPath.toString().replace('\\', '/')), pf.inZipPath.toString());
+        }
+    }
+
+    /**
+     * Имя говорит, что архив уже модифицирован, но файлов плагина в нём нет: исходный файл не трогается
+     */
+    @Test
+    void misleadingNameKeepsSource() throws IOException {
+        Path source = allure(dir.resolve("allure-with-resultiks-2.24.0.zip"), false);
+        byte[] before = Files.readAllBytes(source);
+        Path output = upgrade(source);
+        assertNotEquals(source, output);
+        assertArrayEquals(before, Files.readAllBytes(source));
+    }
+
+    private static Path upgrade(Path source) {
+        try (Upgrade upgrade = new Upgrade(source, PluginFileSet.fromResources(), message -> {
+        })) {
+            return upgrade.run();
+        }
+    }
+
+    /**
+     * Сжатые байты записи в том виде, как они лежат в архиве
+     */
+    private static byte[] raw(FileChannel channel, ZipIndex.Entry entry) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int) entry.compressedSize);
+        long position = ZipIndex.dataOffset(channel, entry);
+        while (data.hasRemaining()) {
+            if (channel.read(data, position + data.position()) < 0)
+                fail("Неожиданный конец архива в записи " + entry.name());
+        }
+        return data.array();
+    }
+
+    /**
+     * Минимальный дистрибутив Allure, сжатый уровнем 1; stale - с файлом в папке плагина, которого нет в наборе
+     */
+    private static Path allure(Path path, boolean stale) throws IOException {
+        Map<String, String> files = new LinkedHashMap<>();
+        files.put(ROOT + "bin/allure", "#!/bin/sh\n");
+        files.put(CONFIG, "plugins:\n  - junit-xml-plugin\n");
+        files.put(ROOT + "lib/allure-commandline-2.24.0.jar", "jar");
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 2000; i++)
+            log.append("line ").append(i).append(i % 3 == 0 ? " ok" : " skipped").append('\n');
+        files.put(ROOT + "lib/config/log.txt", log.toString());
+        if (stale)
+            files.put(STALE, "old");
+        try (OutputStream out = Files.newOutputStream(path);
+             ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.setLevel(Deflater.BEST_SPEED);
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                zip.putNextEntry(new ZipEntry(file.getKey()));
+                zip.write(file.getValue().getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return path;
+    }
+}
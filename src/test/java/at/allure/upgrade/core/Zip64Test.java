@@ -0,0 +1,209 @@
+package at.allure.upgrade.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static at.allure.upgrade.core.ZipIndex.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Архивы за пределами классического zip: запись больше 4 ГБ и больше 65535 записей.
+ * Записанное ZipWriter проверяется по байтам и читается обратно через {@link ZipIndex} и {@link ZipFile}.
+ */
+class Zip64Test {
+    private static final long LARGE_SIZE = 4L * 1024 * 1024 * 1024 + 1;
+    private static final int MANY_ENTRIES = 70_000;
+    private static final String ROOT = "allure-1.0.0/";
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Добавленный файл больше 4 ГБ: хранится без буфера, сжимается потоком, размеры пишутся в поле ZIP64
+     */
+    @Test
+    void largeAddedEntry() throws IOException {
+        Path source = archive(dir.resolve("allure-1.0.0.zip"), 1);
+        // разреженный файл: на диске почти не занимает места, читается нулями
+        Path large = dir.resolve("large.bin");
+        try (RandomAccessFile file = new RandomAccessFile(large.toFile(), "rw")) {
+            file.seek(LARGE_SIZE - 1);
+            file.write(1);
+        }
+        long crc = ByteSource.of(large).crc();
+
+        Path output = dir.resolve("allure-with-resultiks-1.0.0.zip");
+        ZipWriter.Output written;
+        try (Zip zip = new Zip(source)) {
+            zip.add(Paths.get("lib", "large.bin"), ByteSource.of(large));
+            assertFalse(zip.changes().get(Paths.get("lib", "large.bin")).isBuffered());
+            assertNull(zip.compressed(Paths.get("lib", "large.bin")));
+            written = zip.save(output, Progress.NONE.start("save", -1));
+        }
+
+        ZipIndex index = ZipIndex.read(output, true);
+        assertEquals(2, index.entries.size());
+        ZipIndex.Entry entry = index.entries.get(1);
+        assertEquals(ROOT + "lib/large.bin", entry.name());
+        assertEquals(LARGE_SIZE, entry.size);
+        assertEquals(crc, entry.crc);
+        assertEquals(ZipEntry.DEFLATED, entry.method);
+        assertEquals(0, ZipVerifier.verifyWritten(written, index).size());
+
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.READ)) {
+            // central directory: в поле размера 0xFFFFFFFF, в ZIP64 только размер - остальное помещается в 4 байта
+            ByteBuffer cen = read(channel, index.centralDirectoryOffset, (int) index.centralDirectorySize);
+            int pos = CEN_HEADER_SIZE + Short.toUnsignedInt(cen.getShort(28)) + Short.toUnsignedInt(cen.getShort(30))
+                    + Short.toUnsignedInt(cen.getShort(32));
+            assertEquals(CEN_SIG, cen.getInt(pos));
+            assertEquals(ZIP64_MAGIC, Integer.toUnsignedLong(cen.getInt(pos + 24)));
+            assertTrue(Short.toUnsignedInt(cen.getShort(pos + 6)) >= 45);
+            int nameLength = Short.toUnsignedInt(cen.getShort(pos + 28));
+            ByteBuffer cenExtra = slice(cen, pos + CEN_HEADER_SIZE + nameLength, Short.toUnsignedInt(cen.getShort(pos + 30)));
+            assertArrayEquals(new long[]{LARGE_SIZE}, zip64Extra(cenExtra));
+
+            // локальный заголовок: в ZIP64 оба размера сразу
+            ByteBuffer loc = read(channel, entry.localHeaderOffset, LOC_HEADER_SIZE);
+            assertEquals(LOC_SIG, loc.getInt(0));
+            assertEquals(ZIP64_MAGIC, Integer.toUnsignedLong(loc.getInt(18)));
+            assertEquals(ZIP64_MAGIC, Integer.toUnsignedLong(loc.getInt(22)));
+            ByteBuffer locExtra = read(channel, entry.localHeaderOffset + LOC_HEADER_SIZE + Short.toUnsignedInt(loc.getShort(26)),
+                    Short.toUnsignedInt(loc.getShort(28)));
+            assertArrayEquals(new long[]{LARGE_SIZE, entry.compressedSize}, zip64Extra(locExtra));
+        }
+
+        try (ZipFile zipFile = new ZipFile(output.toFile())) {
+            ZipEntry zipEntry = zipFile.getEntry(ROOT + "lib/large.bin");
+            assertEquals(LARGE_SIZE, zipEntry.getSize());
+            assertEquals(crc, zipEntry.getCrc());
+            CRC32 actual = new CRC32();
+            long size = 0;
+            byte[] buffer = new byte[1024 * 1024];
+            try (InputStream in = zipFile.getInputStream(zipEntry)) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    actual.update(buffer, 0, n);
+                    size += n;
+                }
+            }
+            assertEquals(LARGE_SIZE, size);
+            assertEquals(crc, actual.getValue());
+        }
+    }
+
+    /**
+     * Больше 65535 записей: число записей, размер и смещение central directory - в записи ZIP64 end of central directory
+     */
+    @Test
+    void manyEntries() throws IOException {
+        Path source = archive(dir.resolve("allure-1.0.0.zip"), MANY_ENTRIES);
+        Path output = dir.resolve("allure-with-resultiks-1.0.0.zip");
+        byte[] added = "plugins:\n  - resultiks\n".getBytes(StandardCharsets.UTF_8);
+        ZipWriter.Output written;
+        try (Zip zip = new Zip(source)) {
+            zip.add(Paths.get("config", "allure.yml"), added);
+            written = zip.save(output, Progress.NONE.start("save", -1));
+        }
+        long count = MANY_ENTRIES + 1;
+
+        ZipIndex index = ZipIndex.read(output, true);
+        assertEquals(count, index.entries.size());
+        assertEquals(0, ZipVerifier.verifyWritten(written, index).size());
+
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            ByteBuffer end = read(channel, fileSize - END_HEADER_SIZE, END_HEADER_SIZE);
+            assertEquals(END_SIG, end.getInt(0));
+            assertEquals(ZIP64_MAGIC_COUNT, Short.toUnsignedInt(end.getShort(8)));
+            assertEquals(ZIP64_MAGIC_COUNT, Short.toUnsignedInt(end.getShort(10)));
+
+            ByteBuffer locator = read(channel, fileSize - END_HEADER_SIZE - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+            assertEquals(ZIP64_LOCATOR_SIG, locator.getInt(0));
+            assertEquals(0, locator.getInt(4));
+            assertEquals(1, locator.getInt(16));
+            long zip64EndOffset = locator.getLong(8);
+            assertEquals(fileSize - END_HEADER_SIZE - ZIP64_LOCATOR_SIZE - ZIP64_END_HEADER_SIZE, zip64EndOffset);
+
+            ByteBuffer zip64End = read(channel, zip64EndOffset, ZIP64_END_HEADER_SIZE);
+            assertEquals(ZIP64_END_SIG, zip64End.getInt(0));
+            assertEquals(ZIP64_END_HEADER_SIZE - 12, zip64End.getLong(4));
+            assertEquals(count, zip64End.getLong(24));
+            assertEquals(count, zip64End.getLong(32));
+            assertEquals(index.centralDirectorySize, zip64End.getLong(40));
+            assertEquals(index.centralDirectoryOffset, zip64End.getLong(48));
+            assertEquals(zip64EndOffset, index.centralDirectoryOffset + index.centralDirectorySize);
+        }
+
+        try (ZipFile zipFile = new ZipFile(output.toFile())) {
+            assertEquals(count, zipFile.size());
+            try (InputStream in = zipFile.getInputStream(zipFile.getEntry(ROOT + "config/allure.yml"))) {
+                assertArrayEquals(added, in.readAllBytes());
+            }
+            ZipEntry last = zipFile.getEntry(ROOT + "data/" + (MANY_ENTRIES - 1) + ".txt");
+            try (InputStream in = zipFile.getInputStream(last)) {
+                assertArrayEquals(content(MANY_ENTRIES - 1), in.readAllBytes());
+            }
+        }
+    }
+
+    /**
+     * Исходный архив с rootDir и заданным числом небольших файлов
+     */
+    private static Path archive(Path path, int entries) throws IOException {
+        try (OutputStream out = Files.newOutputStream(path);
+             ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (int i = 0; i < entries; i++) {
+                zip.putNextEntry(new ZipEntry(ROOT + "data/" + i + ".txt"));
+                zip.write(content(i));
+                zip.closeEntry();
+            }
+        }
+        return path;
+    }
+
+    private static byte[] content(int i) {
+        return ("file " + i + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Значения поля ZIP64 (id 0x0001) из extra
+     */
+    private static long[] zip64Extra(ByteBuffer extra) {
+        for (int pos = 0; pos + 4 <= extra.limit(); pos += 4 + Short.toUnsignedInt(extra.getShort(pos + 2))) {
+            if (Short.toUnsignedInt(extra.getShort(pos)) != ZIP64_EXTRA_ID)
+                continue;
+            long[] values = new long[Short.toUnsignedInt(extra.getShort(pos + 2)) / 8];
+            for (int i = 0; i < values.length; i++)
+                values[i] = extra.getLong(pos + 4 + 8 * i);
+            return values;
+        }
+        return fail("В extra нет поля ZIP64");
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        return ZipIndex.readFully(channel, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position).limit(position + length);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,99 @@
+package at.allure.upgrade.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Индекс central directory: поиск записей по префиксу имени, кодировка имён по флагу UTF-8,
+ * отказ читать запись, выходящую за границы central directory
+ */
+class ZipIndexTest {
+    @TempDir
+    Path dir;
+
+    /**
+     * Записи лежат в архиве не по порядку; по префиксу находятся только записи папки, в порядке байтов имени
+     */
+    @Test
+    void withPrefixFindsFolderEntriesInNameOrder() throws IOException {
+        Path archive = zip(dir.resolve("a.zip"), StandardCharsets.UTF_8,
+                "allure/plugins/b/z.js", "allure/lib/x.jar", "allure/plugins/a/", "allure/plugins-old/c.js",
+                "allure/plugins/a/y.js", "allure/plugins/b/");
+        ZipIndex index = ZipIndex.read(archive);
+        assertEquals(Arrays.asList("allure/plugins/a/", "allure/plugins/a/y.js", "allure/plugins/b/", "allure/plugins/b/z.js"),
+                names(index.withPrefix("allure/plugins/")));
+        assertEquals(Arrays.asList("allure/plugins/b/", "allure/plugins/b/z.js"), names(index.withPrefix("allure/plugins/b")));
+        assertEquals(6, index.withPrefix("").size());
+        assertTrue(index.withPrefix("allure/plugins/c").isEmpty());
+        assertTrue(index.withPrefix("zzz").isEmpty());
+    }
+
+    /**
+     * Имя с флагом UTF-8 читается как UTF-8, имя без флага - в IBM437, как его записывают старые архиваторы
+     */
+    @Test
+    void namesAreDecodedByUtf8Flag() throws IOException {
+        ZipIndex utf8 = ZipIndex.read(zip(dir.resolve("utf8.zip"), StandardCharsets.UTF_8, "отчёт.txt"));
+        assertNotEquals(0, utf8.entries.get(0).flags & ZipIndex.UTF8_FLAG);
+        assertEquals("отчёт.txt", utf8.entries.get(0).name());
+
+        ZipIndex legacy = ZipIndex.read(zip(dir.resolve("ibm437.zip"), Charset.forName("IBM437"), "café.txt"));
+        assertEquals(0, legacy.entries.get(0).flags & ZipIndex.UTF8_FLAG);
+        assertEquals("café.txt", legacy.entries.get(0).name());
+        assertTrue(legacy.withPrefix("café").isEmpty(), "префикс ищется по байтам UTF-8");
+    }
+
+    /**
+     * Длина комментария последней записи указывает за конец central directory
+     */
+    @Test
+    void rejectsRecordBeyondCentralDirectory() throws IOException {
+        Path archive = zip(dir.resolve("broken.zip"), StandardCharsets.UTF_8, "a.txt", "b.txt");
+        byte[] bytes = Files.readAllBytes(archive);
+        int last = -1;
+        for (int i = 0; i + 4 <= bytes.length; i++) {
+            if (bytes[i] == 'P' && bytes[i + 1] == 'K' && bytes[i + 2] == 1 && bytes[i + 3] == 2)
+                last = i;
+        }
+        bytes[last + 32] = (byte) 0xFF;
+        bytes[last + 33] = (byte) 0xFF;
+        Files.write(archive, bytes);
+
+        IOException e = assertThrows(IOException.class, () -> ZipIndex.read(archive));
+        assertTrue(e.getMessage().startsWith("Повреждена запись central directory №1"), e.getMessage());
+    }
+
+    private static List<String> names(List<ZipIndex.Entry> entries) {
+        List<String> names = new ArrayList<>();
+        for (ZipIndex.Entry entry : entries)
+            names.add(entry.name());
+        return names;
+    }
+
+    private static Path zip(Path path, Charset charset, String... names) throws IOException {
+        try (OutputStream out = Files.newOutputStream(path);
+             ZipOutputStream zip = new ZipOutputStream(out, charset)) {
+            for (String name : names) {
+                zip.putNextEntry(new ZipEntry(name));
+                if (!name.endsWith("/"))
+                    zip.write(name.getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return path;
+    }
+}
@@ -0,0 +1,121 @@
+package at.allure.upgrade.core;
+
+import at.allure.upgrade.utils.AllureUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Модель zip по central directory: проверка дистрибутива и версия Allure определяются по индексу,
+ * в хранилище попадает только то, что изменено или добавлено
+ */
+class ZipTest {
+    private static final String ROOT = "allure-2.24.0/";
+    private static final Path CONFIG = Paths.get("config", "allure.yml");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void allureIsRecognizedFromIndexAlone() throws IOException {
+        try (Zip zip = new Zip(allure(dir.resolve("allure-2.24.0.zip")))) {
+            assertEquals("allure-2.24.0", zip.rootDir);
+            assertTrue(AllureUtils.isAllureZip(zip));
+            assertEquals("2.24.0", AllureUtils.parseAllureVersion(zip));
+            assertTrue(zip.changes().isEmpty());
+            assertEquals(0, zip.store().usedBytes());
+        }
+    }
+
+    /**
+     * Правка конфига читает одну запись; остальные содержимое не занимают
+     */
+    @Test
+    void onlyTouchedEntriesAreMaterialized() throws IOException {
+        try (Zip zip = new Zip(allure(dir.resolve("allure-2.24.0.zip")))) {
+            zip.updateContent(CONFIG, config -> config + "  - resultiks-plugin\n");
+            assertEquals(Collections.singleton(CONFIG), zip.changes().keySet());
+            assertEquals("plugins:\n  - junit-xml-plugin\n  - resultiks-plugin\n", new String(zip.read(CONFIG), StandardCharsets.UTF_8));
+
+            // правка без изменений ничего не добавляет
+            Path bin = Paths.get("bin", "allure");
+            zip.updateContent(bin, content -> content);
+            assertFalse(zip.changes().containsKey(bin));
+            assertEquals("#!/bin/sh\n", new String(zip.read(bin), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void savesChangesAndCopiesTheRest() throws IOException {
+        Path output = dir.resolve("output.zip");
+        Path added = Paths.get("plugins", "p", "a.js");
+        Path removed = Paths.get("lib", "allure-commandline-2.23.0.jar");
+        try (Zip zip = new Zip(allure(dir.resolve("allure-2.24.0.zip")))) {
+            zip.updateContent(CONFIG, config -> config + "  - p\n")
+                    .add(added, "a".getBytes(StandardCharsets.UTF_8))
+                    .remove(removed);
+            assertTrue(zip.contains(added));
+            assertFalse(zip.contains(removed));
+            assertEquals(new HashSet<>(Arrays.asList(Paths.get("bin", "allure"), CONFIG,
+                    Paths.get("lib", "allure-commandline-2.24.0.jar"), added)), zip.paths());
+            zip.save(output, Progress.NONE.start("save", -1));
+        }
+        try (ZipFile zip = new ZipFile(output.toFile())) {
+            assertEquals("plugins:\n  - junit-xml-plugin\n  - p\n", content(zip, ROOT + "config/allure.yml"));
+            assertEquals("a", content(zip, ROOT + "plugins/p/a.js"));
+            assertEquals("jar 2.24.0", content(zip, ROOT + "lib/allure-commandline-2.24.0.jar"));
+            assertNull(zip.getEntry(ROOT + "lib/allure-commandline-2.23.0.jar"));
+        }
+    }
+
+    private static String content(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        assertNotNull(entry, name);
+        byte[] bytes = new byte[(int) entry.getSize()];
+        try (InputStream in = zip.getInputStream(entry)) {
+            int length = 0;
+            while (length < bytes.length)
+                length += in.read(bytes, length, bytes.length - length);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Дистрибутив Allure с двумя версиями библиотеки: версия - максимальная из lib/allure-*
+     */
+    private static Path allure(Path path) throws IOException {
+        Map<String, String> files = new LinkedHashMap<>();
+        files.put(ROOT, null);
+        files.put(ROOT + "bin/allure", "#!/bin/sh\n");
+        files.put(ROOT + "config/allure.yml", "plugins:\n  - junit-xml-plugin\n");
+        files.put(ROOT + "lib/allure-commandline-2.23.0.jar", "jar 2.23.0");
+        files.put(ROOT + "lib/allure-commandline-2.24.0.jar", "jar 2.24.0");
+        try (OutputStream out = Files.newOutputStream(path);
+             ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                zip.putNextEntry(new ZipEntry(file.getKey()));
+                if (file.getValue() != null)
+                    zip.write(file.getValue().getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return path;
+    }
+}